@@ -32,6 +32,11 @@ var Accelerometer = function() {
      * List of accelerometer watch timers
      */
     this.timers = {};
+
+    /**
+     * List of accelerometer streams
+     */
+    this.streams = {};
 };
 
 Accelerometer.ERROR_MSG = ["Not running", "Starting", "", "Failed to start"];
@@ -64,6 +69,14 @@ Accelerometer.prototype.getCurrentAcceleration = function(successCallback, error
 /**
  * Asynchronously aquires the acceleration repeatedly at a given interval.
  *
+ * If options.filter is set, samples are filtered natively and pushed at most once per
+ * interval, instead of being polled.  The filter can have any of:
+ *      lowPass         Low pass filter weight of a new sample, between 0 and 1
+ *      highPass        High pass filter weight, between 0 and 1 (removes gravity)
+ *      average         Number of samples in moving average
+ *      decimate        Only use every nth sample
+ *      deadband        Only call successCallback if x, y or z changed by more than this
+ *
  * @param {Function} successCallback    The function to call each time the acceleration data is available
  * @param {Function} errorCallback      The function to call when there is an error getting the acceleration data. (OPTIONAL)
  * @param {AccelerationOptions} options The options for getting the accelerometer data such as timeout. (OPTIONAL)
@@ -86,6 +99,23 @@ Accelerometer.prototype.watchAcceleration = function(successCallback, errorCallb
         return;
     }
 
+    // Push filtered samples from native side
+    if (options && options.filter) {
+        var interval = frequency || 10000;
+        var streamId = PhoneGap.createUUID();
+        navigator.accelerometer.streams[streamId] = true;
+        PhoneGap.exec(
+            function(batch) {
+                for (var i = 0; i < batch.timestamp.length; i++) {
+                    var a = new Acceleration(batch.x[i], batch.y[i], batch.z[i]);
+                    a.timestamp = batch.timestamp[i];
+                    successCallback(a);
+                }
+            },
+            errorCallback, "Accelerometer", "startStream", [streamId, 1000 / interval, 1, interval, options.filter]);
+        return streamId;
+    }
+
     // Make sure accelerometer timeout > frequency + 10 sec
     PhoneGap.exec(
         function(timeout) {
@@ -104,10 +134,62 @@ Accelerometer.prototype.watchAcceleration = function(successCallback, errorCallb
     return id;
 };
 
+/**
+ * Asynchronously receives every acceleration sample at a given sample rate.
+ * Samples are collected natively and delivered in batches, so the success callback
+ * is called with an array of Acceleration objects.
+ *
+ * Options are:
+ *      sampleRate      Samples per second (default 100, 0 = as fast as the sensor delivers)
+ *      batchSize       Maximum number of samples per batch (default 10)
+ *      frequency       Maximum msec to wait before a batch is delivered (default 100)
+ *      filter          Native filter of samples (see #watchAcceleration)
+ *
+ * @param {Function} successCallback    The function to call with each batch of acceleration data
+ * @param {Function} errorCallback      The function to call when there is an error getting the acceleration data. (OPTIONAL)
+ * @param {Object} options              The options for streaming the accelerometer data. (OPTIONAL)
+ * @return String                       The watch id that must be passed to #clearWatch to stop streaming.
+ */
+Accelerometer.prototype.streamAcceleration = function(successCallback, errorCallback, options) {
+
+    // successCallback required
+    if (typeof successCallback !== "function") {
+        console.log("Accelerometer Error: successCallback is not a function");
+        return;
+    }
+
+    // errorCallback optional
+    if (errorCallback && (typeof errorCallback !== "function")) {
+        console.log("Accelerometer Error: errorCallback is not a function");
+        return;
+    }
+
+    options = options || {};
+    var sampleRate = (options.sampleRate !== undefined) ? options.sampleRate : 100;
+    var batchSize = (options.batchSize !== undefined) ? options.batchSize : 10;
+    var frequency = (options.frequency !== undefined) ? options.frequency : 100;
+
+    var id = PhoneGap.createUUID();
+    navigator.accelerometer.streams[id] = true;
+    PhoneGap.exec(
+        function(batch) {
+            var samples = [];
+            for (var i = 0; i < batch.timestamp.length; i++) {
+                var a = new Acceleration(batch.x[i], batch.y[i], batch.z[i]);
+                a.timestamp = batch.timestamp[i];
+                samples.push(a);
+            }
+            successCallback(samples);
+        },
+        errorCallback, "Accelerometer", "startStream", [id, sampleRate, batchSize, frequency, options.filter || null]);
+
+    return id;
+};
+
 /**
  * Clears the specified accelerometer watch.
  *
- * @param {String} id       The id of the watch returned from #watchAcceleration.
+ * @param {String} id       The id of the watch returned from #watchAcceleration or #streamAcceleration.
  */
 Accelerometer.prototype.clearWatch = function(id) {
 
@@ -116,6 +198,12 @@ Accelerometer.prototype.clearWatch = function(id) {
         clearInterval(navigator.accelerometer.timers[id]);
         delete navigator.accelerometer.timers[id];
     }
+
+    // Stop native stream
+    if (id && navigator.accelerometer.streams[id] !== undefined) {
+        PhoneGap.exec(null, null, "Accelerometer", "stopStream", [id]);
+        delete navigator.accelerometer.streams[id];
+    }
 };
 
 PhoneGap.addConstructor(function() {
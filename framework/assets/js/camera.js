@@ -30,7 +30,8 @@ var Camera = function() {
  */
 Camera.DestinationType = {
     DATA_URL: 0,                // Return base64 encoded string
-    FILE_URI: 1                 // Return file uri (content://media/external/images/media/2 for Android)
+    FILE_URI: 1,                // Return file uri (content://media/external/images/media/2 for Android)
+    BLOB_URL: 2                 // Return url of image data served by PhoneGap (or a base64 data url if polling)
 };
 Camera.prototype.DestinationType = Camera.DestinationType;
 
@@ -38,6 +38,11 @@ var Compass = function() {
      * List of compass watch timers
      */
     this.timers = {};
+
+    /**
+     * List of compass watches pushed from native side
+     */
+    this.watches = {};
 };
 
 Compass.ERROR_MSG = ["Not running", "Starting", "", "Failed to start"];
@@ -70,6 +75,13 @@ Compass.prototype.getCurrentHeading = function(successCallback, errorCallback, o
 /**
  * Asynchronously aquires the heading repeatedly at a given interval.
  *
+ * If options.filter is set, headings are filtered natively and pushed at most once per
+ * interval, instead of being polled.  The filter can have any of:
+ *      lowPass         Low pass filter weight of a new heading, between 0 and 1
+ *      average         Number of headings in moving average
+ *      decimate        Only use every nth heading
+ *      deadband        Only call successCallback if heading changed by more than this many degrees
+ *
  * @param {Function} successCallback    The function to call each time the heading data is available
  * @param {Function} errorCallback      The function to call when there is an error getting the heading data. (OPTIONAL)
  * @param {HeadingOptions} options      The options for getting the heading data such as timeout and the frequency of the watch. (OPTIONAL)
@@ -92,6 +104,14 @@ Compass.prototype.watchHeading= function(successCallback, errorCallback, options
         return;
     }
 
+    // Push filtered headings from native side
+    if (options && options.filter) {
+        var watchId = PhoneGap.createUUID();
+        navigator.compass.watches[watchId] = true;
+        PhoneGap.exec(successCallback, errorCallback, "Compass", "startWatch", [watchId, frequency, options.filter]);
+        return watchId;
+    }
+
     // Make sure compass timeout > frequency + 10 sec
     PhoneGap.exec(
         function(timeout) {
@@ -124,6 +144,12 @@ Compass.prototype.clearWatch = function(id) {
         clearInterval(navigator.compass.timers[id]);
         delete navigator.compass.timers[id];
     }
+
+    // Stop native watch
+    if (id && navigator.compass.watches[id]) {
+        PhoneGap.exec(null, null, "Compass", "stopWatch", [id]);
+        delete navigator.compass.watches[id];
+    }
 };
 
 Compass.prototype._castDate = function(pluginResult) {
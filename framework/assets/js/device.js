@@ -61,7 +61,7 @@ Device.prototype.getInfo = function(successCallback, errorCallback) {
     }
 
     // Get info
-    PhoneGap.exec(successCallback, errorCallback, "Device", "getDeviceInfo", []);
+    PhoneGap.batchExec(successCallback, errorCallback, "Device", "getDeviceInfo", []);
 };
 
 /*
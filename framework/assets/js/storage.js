@@ -23,15 +23,47 @@ PhoneGap.addResource("storage");
 var DroidDB_Rows = function() {
     this.resultSet = [];    // results array
     this.length = 0;        // number of rows
+    this.columns = null;    // column names, if rows were sent in column format
+    this.values = null;     // value arrays of rows, if rows were sent in column format
 };
 
 /**
- * Get item from SQL result set
+ * Set the rows of SQL result set
+ * PRIVATE METHOD
+ *
+ * @param rows          Array of row objects, or of value arrays if columns is set
+ * @param columns       Array of column names (optional)
+ */
+DroidDB_Rows.prototype.setRows = function(rows, columns) {
+    if (columns) {
+        this.columns = columns;
+        this.values = rows;
+        this.resultSet = [];
+    }
+    else {
+        this.resultSet = rows;
+    }
+    this.length = rows.length;
+};
+
+/**
+ * Get item from SQL result set.
+ * Rows sent in column format are made into objects when they are first read.
  *
  * @param row           The row number to return
  * @return              The row object
  */
 DroidDB_Rows.prototype.item = function(row) {
+    if (this.columns && !this.resultSet[row] && row >= 0 && row < this.length) {
+        var values = this.values[row];
+        var item = {};
+        var i;
+        for (i = 0; i < this.columns.length; i++) {
+            item[this.columns[i]] = values[i];
+        }
+        this.resultSet[row] = item;
+        this.values[row] = null;
+    }
     return this.resultSet[row];
 };
 
@@ -42,6 +74,24 @@ DroidDB_Rows.prototype.item = function(row) {
  */
 var DroidDB_Result = function() {
     this.rows = new DroidDB_Rows();
+    this.hasMore = false;   // more pages of rows follow (paged queries only)
+    this.rowsAffected = 0;  // number of rows changed by insert, update or delete
+};
+
+/**
+ * Set the changes made by an insert, update or delete in SQL result set.
+ * PRIVATE METHOD
+ *
+ * @param r                 The result set
+ * @param data              The result sent by native code
+ */
+var DroidDB_setChanges = function(r, data) {
+    if (typeof data.rowsAffected !== "undefined") {
+        r.rowsAffected = data.rowsAffected;
+    }
+    if (typeof data.insertId !== "undefined") {
+        r.insertId = data.insertId;
+    }
 };
 
 /**
@@ -75,8 +125,16 @@ DroidDB.prototype.completeQuery = function(id, data) {
 
                 // Save query results
                 var r = new DroidDB_Result();
-                r.rows.resultSet = data;
-                r.rows.length = data.length;
+                if (query.batch) {
+                    r = data;
+                }
+                else if (data && data.rows) {
+                    r.rows.setRows(data.rows, data.columns);
+                    DroidDB_setChanges(r, data);
+                }
+                else {
+                    r.rows.setRows(data);
+                }
                 try {
                     if (typeof query.successCallback === 'function') {
                         query.successCallback(query.tx, r);
@@ -93,6 +151,72 @@ DroidDB.prototype.completeQuery = function(id, data) {
     }
 };
 
+/**
+ * Callback from native code with a page of a paged query.
+ * The query is complete with the last page.
+ * PRIVATE METHOD
+ *
+ * @param id                Query id
+ * @param page              The page {rows:[...], more:true|false}
+ */
+DroidDB.prototype.completePage = function(id, page) {
+    var query = this.queryQueue[id];
+    if (query) {
+        try {
+            if (!page.more) {
+                delete this.queryQueue[id];
+            }
+
+            // Get transaction
+            var tx = query.tx;
+
+            // If transaction hasn't failed
+            if (tx && tx.queryList[id]) {
+                var r = new DroidDB_Result();
+                r.rows.setRows(page.rows, page.columns);
+                DroidDB_setChanges(r, page);
+                r.hasMore = page.more;
+                try {
+                    if (typeof query.successCallback === 'function') {
+                        query.successCallback(query.tx, r);
+                    }
+                } catch (ex) {
+                    console.log("executeSql error calling user success callback: "+ex);
+                }
+
+                if (!page.more) {
+                    tx.queryComplete(id);
+                }
+            }
+        } catch (e) {
+            console.log("executeSql error: "+e);
+        }
+    }
+};
+
+/**
+ * Callback from native code when a batch of statements is complete.
+ * PRIVATE METHOD
+ *
+ * @param id                Query id of batch
+ * @param batch             The result {results:[...], error:null|{index:i, message:"..."}}
+ */
+DroidDB.prototype.completeBatch = function(id, batch) {
+    if (batch.error) {
+        this.fail(batch.error.message, id);
+        return;
+    }
+    var results = [];
+    var i, r;
+    for (i = 0; i < batch.results.length; i++) {
+        r = new DroidDB_Result();
+        r.rows.setRows(batch.results[i].rows || []);
+        DroidDB_setChanges(r, batch.results[i]);
+        results.push(r);
+    }
+    this.completeQuery(id, results);
+};
+
 /**
  * Callback from native code when query fails
  * PRIVATE METHOD
@@ -160,6 +284,8 @@ var DroidDB_Query = function(tx) {
     this.successCallback = null;
     this.errorCallback = null;
 
+    // Query is a batch of statements
+    this.batch = false;
 };
 
 /**
@@ -178,34 +304,61 @@ var DroidDB_Tx = function() {
 
     // Query list
     this.queryList = {};
+
+    // Transaction function
+    this.process = null;
+
+    // Name of database
+    this.dbName = null;
+
+    // Database object, which runs its next transaction when this one ends
+    this.db = null;
+
+    // Transaction has been committed or rolled back
+    this.ended = false;
 };
 
 /**
  * Mark query in transaction as complete.
- * If all queries are complete, call the user's transaction success callback.
+ * If all queries are complete, commit the transaction and call the user's
+ * transaction success callback.
  *
  * @param id                Query id
  */
 DroidDB_Tx.prototype.queryComplete = function(id) {
     delete this.queryList[id];
 
-    // If no more outstanding queries, then fire transaction success
-    if (this.successCallback) {
-        var count = 0;
-        var i;
-        for (i in this.queryList) {
-            if (this.queryList.hasOwnProperty(i)) {
-                count++;
-            }
-        }
-        if (count === 0) {
-            try {
-                this.successCallback();
-            } catch(e) {
-                console.log("Transaction error calling user success callback: " + e);
-            }
+    // If no more outstanding queries, then commit and fire transaction success
+    var count = 0;
+    var i;
+    for (i in this.queryList) {
+        if (this.queryList.hasOwnProperty(i)) {
+            count++;
         }
     }
+    if (count === 0) {
+        var tx = this;
+        this.ended = true;
+        PhoneGap.exec(function() {
+                if (tx.successCallback) {
+                    try {
+                        tx.successCallback();
+                    } catch(e) {
+                        console.log("Transaction error calling user success callback: " + e);
+                    }
+                }
+                tx.end();
+            }, function(reason) {
+                if (tx.errorCallback) {
+                    try {
+                        tx.errorCallback(reason);
+                    } catch(e) {
+                        console.log("Transaction error calling user error callback: " + e);
+                    }
+                }
+                tx.end();
+            }, "Storage", "commitTransaction", [this.id, this.dbName]);
+    }
 };
 
 /**
@@ -216,11 +369,15 @@ DroidDB_Tx.prototype.queryComplete = function(id) {
  */
 DroidDB_Tx.prototype.queryFailed = function(id, reason) {
 
-    // The sql queries in this transaction have already been run, since
-    // we really don't have a real transaction implemented in native code.
-    // However, the user callbacks for the remaining sql queries in transaction
-    // will not be called.
+    // Roll back the native transaction.  The user callbacks for the remaining
+    // sql queries in transaction will not be called.
+    var tx = this;
     this.queryList = {};
+    this.ended = true;
+    var end = function() {
+        tx.end();
+    };
+    PhoneGap.exec(end, end, "Storage", "rollbackTransaction", [this.id, this.dbName]);
 
     if (this.errorCallback) {
         try {
@@ -231,15 +388,36 @@ DroidDB_Tx.prototype.queryFailed = function(id, reason) {
     }
 };
 
+/**
+ * Called when the native transaction has been committed or rolled back.
+ * The next transaction of the database can start.
+ */
+DroidDB_Tx.prototype.end = function() {
+    if (this.db) {
+        this.db.transactionEnded(this);
+    }
+};
+
 /**
  * Execute SQL statement
  *
+ * If options.pageSize is set, the rows are returned in pages of that many rows, and the
+ * success callback is called for each page.  result.hasMore is false for the last page.
+ * If options.columns is true, the column names are sent once and values keep their SQL
+ * types, which makes results of many rows much smaller.
+ *
  * @param sql                   SQL statement to execute
  * @param params                Statement parameters
  * @param successCallback       Success callback
  * @param errorCallback         Error callback
+ * @param options               Query options (optional) {pageSize:100, columns:true}
  */
-DroidDB_Tx.prototype.executeSql = function(sql, params, successCallback, errorCallback) {
+DroidDB_Tx.prototype.executeSql = function(sql, params, successCallback, errorCallback, options) {
+
+    // A statement can't be added once the transaction has been committed or rolled back
+    if (this.ended) {
+        throw new Error("Transaction has ended");
+    }
 
     // Init params array
     if (typeof params === 'undefined') {
@@ -255,15 +433,73 @@ DroidDB_Tx.prototype.executeSql = function(sql, params, successCallback, errorCa
     query.errorCallback = errorCallback;
 
     // Call native code
-    PhoneGap.exec(null, null, "Storage", "executeSql", [sql, params, query.id]);
+    var fail = function(reason) {
+        droiddb.fail(reason, query.id);
+    };
+    var columns = (options && options.columns === true) ? true : false;
+    if (options && options.pageSize > 0) {
+        PhoneGap.exec(function(page) {
+                droiddb.completePage(query.id, page);
+            }, fail, "Storage", "executeSql", [sql, params, query.id, options.pageSize, columns, this.id, this.dbName]);
+    }
+    else {
+        PhoneGap.exec(null, fail, "Storage", "executeSql", [sql, params, query.id, 0, columns, this.id, this.dbName]);
+    }
+};
+
+/**
+ * Execute a batch of SQL statements in one call to native code.
+ * The success callback is called once, with an array of result sets, one for each
+ * statement.  If a statement fails, the rest of the batch isn't run, and the
+ * transaction fails.
+ *
+ * @param statements            Array of statements [{sql:"...", params:[...]}, ...]
+ * @param successCallback       Success callback
+ * @param errorCallback         Error callback
+ */
+DroidDB_Tx.prototype.executeBatch = function(statements, successCallback, errorCallback) {
+
+    // A batch can't be added once the transaction has been committed or rolled back
+    if (this.ended) {
+        throw new Error("Transaction has ended");
+    }
+
+    // Create query and add to queue
+    var query = new DroidDB_Query(this);
+    query.batch = true;
+
+    // Save callbacks
+    query.successCallback = successCallback;
+    query.errorCallback = errorCallback;
+
+    // Call native code
+    PhoneGap.exec(function(batch) {
+            droiddb.completeBatch(query.id, batch);
+        }, function(reason) {
+            droiddb.fail(reason, query.id);
+        }, "Storage", "executeBatch", [statements, this.id, this.dbName]);
 };
 
-var DatabaseShell = function() {
+/**
+ * Database object
+ * PRIVATE METHOD
+ * @constructor
+ * @param name              Database name
+ */
+var DatabaseShell = function(name) {
+    this.name = name;
+
+    // Transactions waiting to start, and the transaction that is running
+    this.transactions = [];
+    this.current = null;
 };
 
 /**
  * Start a transaction.
- * Does not support rollback in event of failure.
+ * The statements of the transaction are run in one native transaction, which is
+ * committed when all of them complete, and rolled back if one of them fails.
+ * Transactions of a database run one at a time: a transaction starts when the
+ * previous one has been committed or rolled back.
  *
  * @param process {Function}            The transaction function
  * @param successCallback {Function}
@@ -271,24 +507,62 @@ var DatabaseShell = function() {
  */
 DatabaseShell.prototype.transaction = function(process, errorCallback, successCallback) {
     var tx = new DroidDB_Tx();
+    tx.dbName = this.name;
+    tx.db = this;
     tx.successCallback = successCallback;
     tx.errorCallback = errorCallback;
+    tx.process = process;
+    this.transactions.push(tx);
+    if (this.current === null) {
+        this.runTransaction();
+    }
+};
+
+/**
+ * Run the next transaction that is waiting, if any.
+ * PRIVATE METHOD
+ */
+DatabaseShell.prototype.runTransaction = function() {
+    var tx = this.transactions.shift();
+    if (!tx) {
+        this.current = null;
+        return;
+    }
+    this.current = tx;
     try {
-        process(tx);
+        tx.process(tx);
     } catch (e) {
         console.log("Transaction error: "+e);
-        if (tx.errorCallback) {
-            try {
-                tx.errorCallback(e);
-            } catch (ex) {
-                console.log("Transaction error calling user error callback: "+e);
-            }
+        tx.queryFailed(null, e);
+        return;
+    }
+
+    // A transaction without statements is complete
+    var i;
+    for (i in tx.queryList) {
+        if (tx.queryList.hasOwnProperty(i)) {
+            return;
         }
     }
+    tx.queryComplete(null);
+};
+
+/**
+ * Called when a transaction has been committed or rolled back.
+ * PRIVATE METHOD
+ *
+ * @param tx                The transaction
+ */
+DatabaseShell.prototype.transactionEnded = function(tx) {
+    if (this.current === tx) {
+        this.runTransaction();
+    }
 };
 
 /**
- * Open database
+ * Open database.
+ * Several databases can be open at the same time.  Statements of different databases
+ * run at the same time, and statements of the same database run in order.
  *
  * @param name              Database name
  * @param version           Database version
@@ -298,7 +572,7 @@ DatabaseShell.prototype.transaction = function(process, errorCallback, successCa
  */
 var DroidDB_openDatabase = function(name, version, display_name, size) {
     PhoneGap.exec(null, null, "Storage", "openDatabase", [name, version, display_name, size]);
-    var db = new DatabaseShell();
+    var db = new DatabaseShell(name);
     return db;
 };
 
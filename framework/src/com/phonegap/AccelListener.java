@@ -7,7 +7,7 @@
  */
 package com.phonegap;
 
-import java.util.List;
+import java.util.ArrayList;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -18,16 +18,18 @@ import com.phonegap.api.Plugin;
 import com.phonegap.api.PluginResult;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.content.Context;
 
 /**
  * This class listens to the accelerometer sensor and stores the latest 
  * acceleration values x,y,z.
+ * 
+ * It can also stream every sample to JavaScript.  Samples are kept in a ring buffer
+ * and sent in batches, so a high sample rate doesn't need a callback per sample.
+ * Each stream can have a SensorFilter, which is run on every sensor event before samples
+ * are taken at the stream's sample rate.
  */
-public class AccelListener extends Plugin implements SensorEventListener {
+public class AccelListener extends Plugin implements SensorHub.Watcher {
 
 	public static int STOPPED = 0;
 	public static int STARTING = 1;
@@ -41,8 +43,78 @@ public class AccelListener extends Plugin implements SensorEventListener {
     int status;							// status of listener
     long lastAccessTime;				// time the value was last retrieved
 
-    private SensorManager sensorManager;// Sensor manager
-    Sensor mSensor;						// Acceleration sensor returned by sensor manager
+    private SensorHub sensorHub;		// Sensors shared with other plugins
+    private PendingCallbacks firstSample = new PendingCallbacks(this);	// Calls waiting for the first value
+
+    private final ArrayList<Stream> streams = new ArrayList<Stream>();	// Streams to JavaScript (guarded by streams)
+    private final StringBuilder batch = new StringBuilder();			// Reused to encode a batch (guarded by streams)
+
+    /**
+     * A stream of samples to a JavaScript callback.
+     * Samples are stored in parallel arrays that are used as a ring buffer.
+     */
+    private static final class Stream {
+        final String id;				// Id of stream from JavaScript
+        final String callbackId;		// Callback that batches are sent to
+        final long interval;			// Minimum msec between samples (0 = every sensor event)
+        final long frequency;			// Maximum msec between batches
+        final SensorFilter filter;		// Filter of samples (can be null)
+        final float[] filtered = new float[3];
+        final float[] x, y, z;
+        final long[] timestamp;
+        int head = 0;					// Index of oldest sample
+        int count = 0;					// Number of samples in buffer
+        long nextSample = 0;			// Time the next sample is due
+        long lastBatch;					// Time the last batch was sent
+
+        Stream(String id, String callbackId, double sampleRate, int batchSize, long frequency, SensorFilter filter) {
+            this.id = id;
+            this.callbackId = callbackId;
+            this.interval = (sampleRate > 0) ? (long) (1000 / sampleRate) : 0;
+            this.frequency = frequency;
+            this.filter = filter;
+            this.x = new float[batchSize];
+            this.y = new float[batchSize];
+            this.z = new float[batchSize];
+            this.timestamp = new long[batchSize];
+            this.lastBatch = System.currentTimeMillis();
+        }
+
+        /**
+         * Determine if the next sample is due.
+         * 
+         * @return			T=a sample at this time would be added
+         */
+        boolean isDue(long time) {
+            return time >= this.nextSample;
+        }
+
+        /**
+         * Add a sample if it is due.
+         * 
+         * @return			T=buffer is full
+         */
+        boolean add(long time, float x, float y, float z) {
+            if (time < this.nextSample) {
+                return false;
+            }
+            // Keep to the sample rate, but don't try to catch up after a gap
+            this.nextSample = (time - this.nextSample < this.interval) ? this.nextSample + this.interval : time + this.interval;
+            int cap = this.x.length;
+            int i = (this.head + this.count) % cap;
+            this.x[i] = x;
+            this.y[i] = y;
+            this.z[i] = z;
+            this.timestamp[i] = time;
+            if (this.count < cap) {
+                this.count++;
+            }
+            else {
+                this.head = (this.head + 1) % cap;
+            }
+            return this.count == cap;
+        }
+    }
 
     /**
      * Create an accelerometer listener.
@@ -63,7 +135,7 @@ public class AccelListener extends Plugin implements SensorEventListener {
 	 */
 	public void setContext(PhonegapActivity ctx) {
 		super.setContext(ctx);
-        this.sensorManager = (SensorManager) ctx.getSystemService(Context.SENSOR_SERVICE);
+        this.sensorHub = SensorManagerSource.getDefaultHub(ctx);
 	}
 
 	/**
@@ -98,28 +170,13 @@ public class AccelListener extends Plugin implements SensorEventListener {
 					if (r == AccelListener.ERROR_FAILED_TO_START) {
 						return new PluginResult(PluginResult.Status.IO_EXCEPTION, AccelListener.ERROR_FAILED_TO_START);
 					}
-					// Wait until running
-					long timeout = 2000;
-					while ((this.status == STARTING) && (timeout > 0)) {
-						timeout = timeout - 100;
-						try {
-							Thread.sleep(100);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						}
-					}
-					if (timeout == 0) {
-						return new PluginResult(PluginResult.Status.IO_EXCEPTION, AccelListener.ERROR_FAILED_TO_START);						
+					// Send value when the first one is received, or an error if none is received in time
+					if (this.status != AccelListener.RUNNING) {
+						return this.firstSample.add(callbackId, 2000, 
+								new PluginResult(PluginResult.Status.IO_EXCEPTION, AccelListener.ERROR_FAILED_TO_START));
 					}
 				}
-	            this.lastAccessTime = System.currentTimeMillis();
-				JSONObject r = new JSONObject();
-				r.put("x", this.x);
-				r.put("y", this.y);
-				r.put("z", this.z);
-				// TODO: Should timestamp be sent?
-				r.put("timestamp", this.timestamp);
-				return new PluginResult(status, r);
+				return new PluginResult(status, this.getAcceleration());
 			}
 			else if (action.equals("setTimeout")) {
 				try {
@@ -138,6 +195,21 @@ public class AccelListener extends Plugin implements SensorEventListener {
 				float f = this.getTimeout();
 				return new PluginResult(status, f);
 			}
+			else if (action.equals("startStream")) {
+				int r = this.startStream(args.getString(0), callbackId, args.optDouble(1, 0), 
+						args.optInt(2, 10), args.optLong(3, 100), 
+						SensorFilter.create(args.optJSONObject(4), 3, 0));
+				if (r == AccelListener.ERROR_FAILED_TO_START) {
+					return new PluginResult(PluginResult.Status.IO_EXCEPTION, AccelListener.ERROR_FAILED_TO_START);
+				}
+				PluginResult pluginResult = new PluginResult(PluginResult.Status.NO_RESULT);
+				pluginResult.setKeepCallback(true);
+				return pluginResult;
+			}
+			else if (action.equals("stopStream")) {
+				this.stopStream(args.getString(0));
+				return new PluginResult(status, 0);
+			}
 			return new PluginResult(status, result);
 		} catch (JSONException e) {
 			return new PluginResult(PluginResult.Status.JSON_EXCEPTION);
@@ -190,19 +262,11 @@ public class AccelListener extends Plugin implements SensorEventListener {
         	return this.status;
         }
 
-        // Get accelerometer from sensor manager
-        List<Sensor> list = this.sensorManager.getSensorList(Sensor.TYPE_ACCELEROMETER);
-        
-        // If found, then register as listener
-        if ((list != null) && (list.size() > 0)) {
-            this.mSensor = list.get(0);
-            this.sensorManager.registerListener(this, this.mSensor, SensorManager.SENSOR_DELAY_FASTEST);
-            this.setStatus(AccelListener.STARTING);
-            this.lastAccessTime = System.currentTimeMillis();
-        }
-        
-        // If error, then set status to error
-        else {
+        // Watch accelerometer.  If it is already running for someone else, then the
+        // most recent value is received right away.
+        this.setStatus(AccelListener.STARTING);
+        this.lastAccessTime = System.currentTimeMillis();
+        if (!this.sensorHub.addWatcher(Sensor.TYPE_ACCELEROMETER, this, SensorManager.SENSOR_DELAY_FASTEST)) {
             this.setStatus(AccelListener.ERROR_FAILED_TO_START);
         }
         
@@ -214,29 +278,132 @@ public class AccelListener extends Plugin implements SensorEventListener {
      */
     public void stop() {
         if (this.status != AccelListener.STOPPED) {
-        	this.sensorManager.unregisterListener(this);
+        	this.sensorHub.removeWatcher(Sensor.TYPE_ACCELEROMETER, this);
         }
         this.setStatus(AccelListener.STOPPED);
+        if (this.firstSample.isWaiting()) {
+            this.firstSample.complete(new PluginResult(PluginResult.Status.IO_EXCEPTION, AccelListener.ERROR_FAILED_TO_START), false);
+        }
+        synchronized (this.streams) {
+            while (this.streams.size() > 0) {
+                this.endStream(this.streams.remove(this.streams.size() - 1));
+            }
+        }
     }
 
     /**
-     * Called when the accuracy of the sensor has changed.
+     * Start streaming samples to JavaScript.
      * 
-     * @param sensor
-     * @param accuracy
+     * @param id			Id of stream
+     * @param callbackId	Callback that batches of samples are sent to
+     * @param sampleRate	Samples per second, can be less than 1 (0 = every sensor event)
+     * @param batchSize		Number of samples per batch
+     * @param frequency		Maximum msec between batches
+     * @param filter		Filter of samples (can be null)
+     * @return				status of listener
      */
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    public int startStream(String id, String callbackId, double sampleRate, int batchSize, long frequency, SensorFilter filter) {
+        int r = this.start();
+        if (r == AccelListener.ERROR_FAILED_TO_START) {
+            return r;
+        }
+        Stream stream = new Stream(id, callbackId, sampleRate, Math.max(batchSize, 1), frequency, filter);
+        synchronized (this.streams) {
+            this.removeStream(id);
+            this.streams.add(stream);
+        }
+        return r;
     }
 
     /**
-     * Sensor listener event.
+     * Stop streaming samples to JavaScript.  Samples that haven't been sent yet are sent first.
      * 
-     * @param SensorEvent event
+     * @param id			Id of stream
      */
-    public void onSensorChanged(SensorEvent event) {
+    public void stopStream(String id) {
+        synchronized (this.streams) {
+            this.removeStream(id);
+        }
+    }
+
+    /**
+     * Remove a stream and end it.  Must be called holding streams.
+     * 
+     * @param id
+     */
+    private void removeStream(String id) {
+        for (int i = 0; i < this.streams.size(); i++) {
+            if (this.streams.get(i).id.equals(id)) {
+                this.endStream(this.streams.remove(i));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send the rest of the samples of a stream and release its callback.  Must be called holding streams.
+     * 
+     * @param stream
+     */
+    private void endStream(Stream stream) {
+        if (stream.count > 0) {
+            this.sendBatch(stream);
+        }
+        this.success(new PluginResult(PluginResult.Status.NO_RESULT), stream.callbackId);
+    }
+
+    /**
+     * Send the samples in a stream's buffer to JavaScript as
+     *     {"timestamp":[...],"x":[...],"y":[...],"z":[...]}
+     * Must be called holding streams.
+     * 
+     * @param stream
+     */
+    private void sendBatch(Stream stream) {
+        StringBuilder buf = this.batch;
+        buf.setLength(0);
+        int cap = stream.x.length;
+        buf.append("{\"timestamp\":[");
+        for (int n = 0, i = stream.head; n < stream.count; n++, i = (i + 1) % cap) {
+            if (n > 0) buf.append(',');
+            buf.append(stream.timestamp[i]);
+        }
+        buf.append("],\"x\":[");
+        for (int n = 0, i = stream.head; n < stream.count; n++, i = (i + 1) % cap) {
+            if (n > 0) buf.append(',');
+            buf.append(stream.x[i]);
+        }
+        buf.append("],\"y\":[");
+        for (int n = 0, i = stream.head; n < stream.count; n++, i = (i + 1) % cap) {
+            if (n > 0) buf.append(',');
+            buf.append(stream.y[i]);
+        }
+        buf.append("],\"z\":[");
+        for (int n = 0, i = stream.head; n < stream.count; n++, i = (i + 1) % cap) {
+            if (n > 0) buf.append(',');
+            buf.append(stream.z[i]);
+        }
+        buf.append("]}");
+        stream.head = 0;
+        stream.count = 0;
+        stream.lastBatch = System.currentTimeMillis();
+
+        PluginResult result = PluginResult.fromJSON(PluginResult.Status.OK, buf.toString());
+        result.setKeepCallback(true);
+        this.success(result, stream.callbackId);
+    }
+
+    /**
+     * Sensor sample from the sensor hub.
+     * 
+     * @param type			The sensor type
+     * @param timestamp		Time of sample in msec
+     * @param values		The values of the sample
+     */
+    public void onSample(int type, long timestamp, float[] values) {
     	
     	// Only look at accelerometer events
-        if (event.sensor.getType() != Sensor.TYPE_ACCELEROMETER) {
+        if (type != Sensor.TYPE_ACCELEROMETER) {
             return;
         }
         
@@ -246,13 +413,47 @@ public class AccelListener extends Plugin implements SensorEventListener {
         }
         
         // Save time that event was received
-        this.timestamp = System.currentTimeMillis();
-        this.x = event.values[0];
-        this.y = event.values[1];
-        this.z = event.values[2];            
+        this.timestamp = timestamp;
+        this.x = values[0];
+        this.y = values[1];
+        this.z = values[2];            
 
         this.setStatus(AccelListener.RUNNING);
 
+        // Send value to calls that were waiting for the accelerometer to start
+        if (this.firstSample.isWaiting()) {
+            try {
+                this.firstSample.complete(new PluginResult(PluginResult.Status.OK, this.getAcceleration()), true);
+            } catch (JSONException e) {
+                this.firstSample.complete(new PluginResult(PluginResult.Status.JSON_EXCEPTION), false);
+            }
+        }
+
+        // Add sample to streams, and send the ones that are full or due
+        synchronized (this.streams) {
+            for (int i = 0; i < this.streams.size(); i++) {
+                Stream stream = this.streams.get(i);
+                boolean full;
+                if (stream.filter == null) {
+                    full = stream.add(this.timestamp, this.x, this.y, this.z);
+                }
+                else if (stream.filter.filter(values, stream.filtered) && stream.isDue(this.timestamp)) {
+                    stream.filter.delivered(stream.filtered);
+                    full = stream.add(this.timestamp, stream.filtered[0], stream.filtered[1], stream.filtered[2]);
+                }
+                else {
+                    full = false;
+                }
+                if (full ||
+                        ((stream.count > 0) && (this.timestamp - stream.lastBatch >= stream.frequency))) {
+                    this.sendBatch(stream);
+                }
+            }
+            if (this.streams.size() > 0) {
+                this.lastAccessTime = this.timestamp;
+            }
+        }
+
         // If values haven't been read for TIMEOUT time, then turn off accelerometer sensor to save power
 		if ((this.timestamp - this.lastAccessTime) > this.TIMEOUT) {
 			this.stop();
@@ -286,6 +487,23 @@ public class AccelListener extends Plugin implements SensorEventListener {
 		return this.TIMEOUT;
 	}
 	
+	/**
+	 * Create the Acceleration JSON object to be returned to JavaScript.
+	 * 
+	 * @return				acceleration
+	 * @throws JSONException
+	 */
+	private JSONObject getAcceleration() throws JSONException {
+		this.lastAccessTime = System.currentTimeMillis();
+		JSONObject r = new JSONObject();
+		r.put("x", this.x);
+		r.put("y", this.y);
+		r.put("z", this.z);
+		// TODO: Should timestamp be sent?
+		r.put("timestamp", this.timestamp);
+		return r;
+	}
+	
 	/**
 	 * Set the status and send it to JavaScript.
 	 * @param status
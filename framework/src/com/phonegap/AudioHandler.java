@@ -110,6 +110,17 @@ public class AudioHandler extends Plugin {
 		return false;
 	}
 
+	/**
+	 * Calls for the same media id are run in order.
+	 * 
+	 * @param action	The action to execute
+	 * @param args		JSONArry of arguments for the plugin.
+	 * @return			The media id
+	 */
+	public String getExecutionLane(String action, JSONArray args) {
+		return args.optString(0, null);
+	}
+
 	/**
 	 * Stop all audio players and recorders.
 	 */
@@ -54,6 +54,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
 	
 	private AudioHandler handler;					// The AudioHandler object
 	private String id;								// The id of this player (used to identify Media object in JavaScript)
+	private String positionKey;						// Key that replaces position updates not yet sent to JavaScript
 	private int state = MEDIA_NONE;					// State of recording or playback
 	private String audioFile = null;				// File name to play or record to
 	private float duration = -1;					// Duration of audio
@@ -73,6 +74,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
 	public AudioPlayer(AudioHandler handler, String id) {
 		this.handler = handler;
 		this.id = id;
+		this.positionKey = "Media.position:" + id;
         this.tempFile = Environment.getExternalStorageDirectory().getAbsolutePath() + "/tmprecording.mp3";
 	}	
 
@@ -243,7 +245,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
 		if (this.mPlayer != null) {
 		    this.mPlayer.seekTo(milliseconds);
 		    Log.d(LOG_TAG, "Send a onStatus update for the new seek");
-		    this.handler.sendJavascript("PhoneGap.Media.onStatus('" + this.id + "', "+MEDIA_POSITION+", "+milliseconds/1000.0f+");");
+		    this.handler.sendLatestJavascript("PhoneGap.Media.onStatus('" + this.id + "', "+MEDIA_POSITION+", "+milliseconds/1000.0f+");", this.positionKey);
 		}
 	}
 	
@@ -294,7 +296,7 @@ public class AudioPlayer implements OnCompletionListener, OnPreparedListener, On
 	public long getCurrentPosition() {
 		if ((this.state == MEDIA_RUNNING) || (this.state == MEDIA_PAUSED)) {
 		    int curPos = this.mPlayer.getCurrentPosition();
-		    this.handler.sendJavascript("PhoneGap.Media.onStatus('" + this.id + "', "+MEDIA_POSITION+", "+curPos/1000.0f+");");
+		    this.handler.sendLatestJavascript("PhoneGap.Media.onStatus('" + this.id + "', "+MEDIA_POSITION+", "+curPos/1000.0f+");", this.positionKey);
 			return curPos;
 		} 
 		else { 
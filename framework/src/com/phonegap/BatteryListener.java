@@ -139,6 +139,7 @@ public class BatteryListener extends Plugin {
     	if (this.batteryCallbackId != null) {
     		PluginResult result = new PluginResult(PluginResult.Status.OK, info);
     		result.setKeepCallback(keepCallback);
+    		result.setCoalesce(true);
     		this.success(result, this.batteryCallbackId);
     	}
     }
@@ -0,0 +1,429 @@
+/*
+ * PhoneGap is available under *either* the terms of the modified BSD license *or* the
+ * MIT License (2008). See http://opensource.org/licenses/alphabetical for full text.
+ *
+ * Copyright (c) 2005-2010, Nitobi Software Inc.
+ * Copyright (c) 2010, IBM Corporation
+ */
+package com.phonegap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class is the queue of JavaScript statements waiting to be sent to JavaScript by the
+ * CallbackServer.
+ *
+ * Statements are added by any number of threads (plugin worker threads, the UI thread) and
+ * removed by a single consumer (the server thread or the polling prompt).  Adding and removing
+ * statements does not take a lock.  A lock is only used to park producers when the queue is
+ * full and the overflow policy is BLOCK.
+ *
+ * A statement can be added with a key (the callback id it is for).  Keys are used by the
+ * COALESCE overflow policy to replace an undelivered statement with a newer one for the same key.
+ * A statement can also ask to be coalesced whether or not the queue is full.  This is used for
+ * streams of updates (such as battery status) where only the newest undelivered one matters,
+ * so each stream takes at most one place in the queue.
+ */
+public class CallbackQueue {
+
+	/**
+	 * What to do when a statement is added to a full queue.
+	 */
+	public enum Overflow {
+		BLOCK,				// Wait until the consumer makes room
+		DROP_OLDEST,		// Discard the oldest undelivered statement
+		COALESCE			// Replace the undelivered statement with the same key, otherwise discard the oldest
+	}
+
+	/**
+	 * A queued statement.  The statement is set to null once it has been taken from the queue,
+	 * so a producer can only replace it while it is still undelivered.
+	 */
+	private static final class Entry {
+		final String key;
+		final AtomicReference<String> statement;
+
+		Entry(String key, String statement) {
+			this.key = key;
+			this.statement = new AtomicReference<String>(statement);
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+
+	// The most recent undelivered entry for each key
+	private final ConcurrentHashMap<String, Entry> keys = new ConcurrentHashMap<String, Entry>();
+
+	// Number of entries in queue
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	// Number of statements discarded because the queue was full
+	private final AtomicInteger dropped = new AtomicInteger(0);
+
+	// Number of statements replaced by a newer one for the same key
+	private final AtomicInteger coalesced = new AtomicInteger(0);
+
+	// Monitor used to park producers when overflow policy is BLOCK
+	private final Object notFull = new Object();
+	private volatile int blocked = 0;
+
+	private volatile int capacity;
+	private volatile Overflow overflow;
+
+	/**
+	 * Constructor.
+	 * Creates an unbounded queue.
+	 */
+	public CallbackQueue() {
+		this(Integer.MAX_VALUE, Overflow.BLOCK);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity		Maximum number of statements in queue
+	 * @param overflow		What to do when a statement is added to a full queue
+	 */
+	public CallbackQueue(int capacity, Overflow overflow) {
+		this.setLimits(capacity, overflow);
+	}
+
+	/**
+	 * Set the capacity and overflow policy of the queue.
+	 *
+	 * @param capacity		Maximum number of statements in queue (0 = unbounded)
+	 * @param overflow		What to do when a statement is added to a full queue
+	 */
+	public void setLimits(int capacity, Overflow overflow) {
+		this.capacity = (capacity > 0) ? capacity : Integer.MAX_VALUE;
+		this.overflow = (overflow != null) ? overflow : Overflow.BLOCK;
+		this.signalNotFull();
+	}
+
+	/**
+	 * Get the number of statements in queue.
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return this.size.get();
+	}
+
+	/**
+	 * Determine if queue is empty.
+	 *
+	 * @return boolean
+	 */
+	public boolean isEmpty() {
+		return this.size.get() == 0;
+	}
+
+	/**
+	 * Get the number of statements that have been discarded because the queue was full.
+	 *
+	 * @return int
+	 */
+	public int getDropped() {
+		return this.dropped.get();
+	}
+
+	/**
+	 * Get the number of statements that have been replaced by a newer one for the same key.
+	 *
+	 * @return int
+	 */
+	public int getCoalesced() {
+		return this.coalesced.get();
+	}
+
+	/**
+	 * Add a statement to the end of the queue.
+	 *
+	 * @param statement
+	 * @return				T=statement was queued, F=interrupted while waiting for room
+	 */
+	public boolean offer(String statement) {
+		return this.offer(null, statement);
+	}
+
+	/**
+	 * Add a statement to the end of the queue.
+	 *
+	 * @param key			The callback id the statement is for (can be null)
+	 * @param statement
+	 * @return				T=statement was queued, F=interrupted while waiting for room
+	 */
+	public boolean offer(String key, String statement) {
+		return this.offer(key, statement, false);
+	}
+
+	/**
+	 * Add a statement to the queue.
+	 *
+	 * @param key			The callback id the statement is for (can be null)
+	 * @param statement
+	 * @param coalesce		T=replace the undelivered statement for key, if any, instead of adding to the end
+	 * @return				T=statement was queued, F=interrupted while waiting for room
+	 */
+	public boolean offer(String key, String statement, boolean coalesce) {
+		if (statement == null) {
+			throw new NullPointerException();
+		}
+		if (coalesce && this.replace(key, statement)) {
+			this.coalesced.incrementAndGet();
+			return true;
+		}
+		while (true) {
+			int n = this.size.get();
+			if (n < this.capacity) {
+				if (this.size.compareAndSet(n, n + 1)) {
+					this.enqueue(key, statement);
+					return true;
+				}
+				continue;
+			}
+
+			// Queue is full
+			Overflow policy = this.overflow;
+			if (policy == Overflow.BLOCK) {
+				if (!this.awaitNotFull()) {
+					return false;
+				}
+			}
+			else {
+				if ((policy == Overflow.COALESCE) && this.replace(key, statement)) {
+					this.dropped.incrementAndGet();
+					return true;
+				}
+
+				// Take the slot of the oldest statement.  The slot stays counted in size
+				// while it changes hands, so another producer can't fill it first.
+				if (this.remove() != null) {
+					this.dropped.incrementAndGet();
+					this.enqueue(key, statement);
+					return true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait until there are fewer than a number of statements in queue.  This lets a producer
+	 * of many statements keep pace with the consumer, whatever the overflow policy is.
+	 *
+	 * @param size			The number of statements
+	 * @param timeout		Maximum msec to wait
+	 * @return				F=timed out or interrupted
+	 */
+	public boolean awaitSizeBelow(int size, long timeout) {
+		if (this.size.get() < size) {
+			return true;
+		}
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (this.notFull) {
+			this.blocked++;
+			try {
+				while (this.size.get() >= size) {
+					long wait = end - System.currentTimeMillis();
+					if (wait <= 0) {
+						return false;
+					}
+					this.notFull.wait(wait);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				this.blocked--;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until there are fewer than a number of statements for a key in queue.  This lets
+	 * a producer of many statements for one callback keep pace with the consumer without
+	 * waiting for statements of other callbacks.
+	 *
+	 * @param key			The callback id the statements are for
+	 * @param size			The number of statements
+	 * @param timeout		Maximum msec to wait
+	 * @return				F=timed out or interrupted
+	 */
+	public boolean awaitKeyBelow(String key, int size, long timeout) {
+		if (this.count(key) < size) {
+			return true;
+		}
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (this.notFull) {
+			this.blocked++;
+			try {
+				while (this.count(key) >= size) {
+					long wait = end - System.currentTimeMillis();
+					if (wait <= 0) {
+						return false;
+					}
+					this.notFull.wait(wait);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				this.blocked--;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the next statement without removing it from queue.
+	 *
+	 * @return String
+	 */
+	public String peek() {
+		while (true) {
+			Entry e = this.queue.peek();
+			if (e == null) {
+				return null;
+			}
+			String s = e.statement.get();
+			if (s != null) {
+				return s;
+			}
+		}
+	}
+
+	/**
+	 * Get the next statement and remove it from queue.
+	 *
+	 * @return String
+	 */
+	public String poll() {
+		String s = this.take();
+		if ((s != null) && (this.blocked > 0)) {
+			this.signalNotFull();
+		}
+		return s;
+	}
+
+	/**
+	 * Remove all statements from queue.
+	 */
+	public void clear() {
+		while (this.poll() != null) { }
+	}
+
+	/**
+	 * Count the undelivered statements for key.
+	 *
+	 * @param key
+	 * @return int
+	 */
+	private int count(String key) {
+		int n = 0;
+		for (Entry e : this.queue) {
+			if (key.equals(e.key) && (e.statement.get() != null)) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Replace the undelivered statement for key.
+	 *
+	 * @param key
+	 * @param statement
+	 * @return				T=statement was replaced
+	 */
+	private boolean replace(String key, String statement) {
+		if (key == null) {
+			return false;
+		}
+		Entry e = this.keys.get(key);
+		if (e == null) {
+			return false;
+		}
+		String old = e.statement.get();
+		return (old != null) && e.statement.compareAndSet(old, statement);
+	}
+
+	/**
+	 * Add a new entry.  The caller must already have accounted for it in size.
+	 *
+	 * @param key
+	 * @param statement
+	 */
+	private void enqueue(String key, String statement) {
+		Entry e = new Entry(key, statement);
+		if (key != null) {
+			this.keys.put(key, e);
+		}
+		this.queue.offer(e);
+	}
+
+	/**
+	 * Remove the oldest entry and return its statement.
+	 *
+	 * @return String
+	 */
+	private String take() {
+		String s = this.remove();
+		if (s != null) {
+			this.size.decrementAndGet();
+		}
+		return s;
+	}
+
+	/**
+	 * Remove the oldest entry and return its statement, without releasing its slot
+	 * in size.  The caller must either release the slot or reuse it.
+	 *
+	 * @return String
+	 */
+	private String remove() {
+		Entry e = this.queue.poll();
+		if (e == null) {
+			return null;
+		}
+		String s = e.statement.getAndSet(null);
+		if (e.key != null) {
+			this.keys.remove(e.key, e);
+		}
+		return s;
+	}
+
+	/**
+	 * Wait until there is room in queue.
+	 *
+	 * @return				F=interrupted
+	 */
+	private boolean awaitNotFull() {
+		synchronized (this.notFull) {
+			this.blocked++;
+			try {
+				while ((this.size.get() >= this.capacity) && (this.overflow == Overflow.BLOCK)) {
+					this.notFull.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				this.blocked--;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Wake up producers waiting for room in queue.
+	 */
+	private void signalNotFull() {
+		synchronized (this.notFull) {
+			this.notFull.notifyAll();
+		}
+	}
+}
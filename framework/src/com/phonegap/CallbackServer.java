@@ -7,15 +7,22 @@
  */
 package com.phonegap;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.URLEncoder;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.util.Log;
 
@@ -27,11 +34,19 @@ import android.util.Log;
  * The process flow for XHR is:
  * 1. JavaScript makes an async XHR call. 
  * 2. The server holds the connection open until data is available. 
- * 3. The server writes the data to the client and closes the connection. 
+ * 3. The server writes all queued data (up to the batch limits) to the client and closes the connection. 
  * 4. The server immediately starts listening for the next XHR call. 
  * 5. The client receives this XHR response, processes it.
  * 6. The client sends a new async XHR request.
  *
+ * The client can instead request /<token>/stream, which keeps the connection open and writes 
+ * each batch of statements as it becomes available, terminated by a newline.
+ *
+ * The server uses a single thread with a non-blocking selector, so any number of clients can
+ * hold connections open at the same time.  Each client is identified by its own security token
+ * and has its own list of JavaScript statements.  The default client is the web page loaded by
+ * DroidGap.  Other web views can be added with addClient().
+ *
  * The CallbackServer class requires the following permission in Android manifest file
  * 		<uses-permission android:name="android.permission.INTERNET" />
  * 
@@ -40,17 +55,117 @@ import android.util.Log;
  * 
  * The process flow for polling is:
  * 1. The client calls CallbackServer.getJavascript() to retrieve next statement.
- * 2. If statement available, then client processes it.
+ * 2. If statements available, then client processes them.
  * 3. The client repeats #1 in loop. 
+ *
+ * In both cases the data sent to the client is a batch of JavaScript statements, where each
+ * statement is framed as <length>:<statement>.  The client splits the batch and evaluates
+ * each statement in order.  The size of a batch is capped by setBatchLimits().
+ *
+ * Binary plugin results are not sent as statements.  They are added with addBlob(), which 
+ * returns a URL /<token>/blob/<id> that the client can read the data from once.
  */
 public class CallbackServer implements Runnable {
 	
 	private static final String LOG_TAG = "CallbackServer";
+	
+	/**
+	 * Number of characters written to a streaming response before it is ended.
+	 */
+	private static final int STREAM_LIMIT = 1024 * 1024;
+	
+	/**
+	 * Time in msec a connection is held open waiting for data before an empty response is sent.
+	 */
+	private static final long WAIT_TIMEOUT = 10000;
+	
+	/**
+	 * Maximum length of a request line.
+	 */
+	private static final int MAX_REQUEST = 1024;
+	
+	/**
+	 * Time in msec that a blob is kept if it isn't read.
+	 */
+	private static final long BLOB_TIMEOUT = 60000;
+	
+	/**
+	 * Initial size of a client's response buffer, and largest size that is kept for reuse.
+	 */
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final int BUFFER_RETAIN = 256 * 1024;
 
 	/**
-	 * The list of JavaScript statements to be sent to JavaScript.
+	 * A web page that receives JavaScript statements from this server.
+	 */
+	private static final class Client {
+		final CallbackQueue javascript;
+		
+		// Connections waiting for data (only used by server thread)
+		final ArrayList<Connection> connections = new ArrayList<Connection>();
+		
+		// Indicates that the server thread has connections waiting for data
+		volatile boolean waiting = false;
+		
+		// Response buffer reused for each batch sent to the client (only used by server thread)
+		ByteBuffer buffer = null;
+		boolean bufferBusy = false;
+		
+		Client(CallbackQueue javascript) {
+			this.javascript = javascript;
+		}
+	}
+	
+	/**
+	 * An open connection from a client.
+	 */
+	private static final class Connection {
+		final SocketChannel channel;
+		final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+		ByteBuffer response = null;
+		ByteBuffer body = null;			// Written after response
+		boolean shared = false;			// T=response is the client's reusable buffer
+		Client client = null;
+		boolean stream = false;			// T=connection is a streaming response
+		boolean close = false;			// T=close connection once response is written
+		long deadline = 0;				// Time to send empty response if no data
+		int sent = 0;					// Characters written on streaming response
+		
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+	
+	/**
+	 * The queue of JavaScript statements to be sent to JavaScript.
+	 */
+	private CallbackQueue javascript;
+	
+	/**
+	 * Binary data waiting to be read by the client, by id.
+	 */
+	private static final class Blob {
+		final ByteBuffer data;
+		final String mimeType;
+		final long expires;
+		
+		Blob(ByteBuffer data, String mimeType) {
+			this.data = data;
+			this.mimeType = mimeType;
+			this.expires = System.currentTimeMillis() + BLOB_TIMEOUT;
+		}
+	}
+	private ConcurrentHashMap<String, Blob> blobs = new ConcurrentHashMap<String, Blob>();
+	
+	/**
+	 * The clients of this server, by security token.
+	 */
+	private ConcurrentHashMap<String, Client> clients;
+	
+	/**
+	 * The client for the queue above.
 	 */
-	private LinkedList<String> javascript;
+	private Client defaultClient;
 	
 	/**
 	 * The port to listen on.
@@ -63,14 +178,14 @@ public class CallbackServer implements Runnable {
 	private Thread serverThread;
 	
 	/**
-	 * Indicates the server is running.
+	 * The selector used by the server thread.
 	 */
-	private boolean active;
+	private volatile Selector selector;
 	
 	/**
-	 * Indicates that the JavaScript statements list is empty
+	 * Indicates the server is running.
 	 */
-	private boolean empty;
+	private volatile boolean active;
 	
 	/**
 	 * Indicates that polling should be used instead of XHR.
@@ -82,15 +197,56 @@ public class CallbackServer implements Runnable {
 	 */
 	private String token;
 	
+	/**
+	 * The maximum number of JavaScript statements sent to the client in one batch.
+	 */
+	private int batchCount = 100;
+	
+	/**
+	 * The maximum number of characters sent to the client in one batch.
+	 * A single statement larger than this is still sent by itself.
+	 */
+	private int batchSize = 512 * 1024;
+	
+	/**
+	 * The shortest and longest delay in msec that a polling client is told to wait before
+	 * its next poll.  The delay doubles after each poll that finds no statements.
+	 */
+	private int minPollDelay = 50;
+	private int maxPollDelay = 2000;
+	
+	/**
+	 * Polling state (only used by the thread that polls, except pollDelay which is reset 
+	 * when a statement is sent).
+	 */
+	private volatile int pollDelay = 50;
+	private long lastPollTime = 0;
+	private int lastPollRemaining = 0;
+	private long pollInterval = 50;					// Average msec between statements, as seen by polls
+	private final AtomicInteger pollCount = new AtomicInteger(0);
+	private final AtomicInteger emptyPollCount = new AtomicInteger(0);
+	
+	/**
+	 * Statements drained from a queue for the current batch (only used by server thread).
+	 */
+	private ArrayList<String> batch = new ArrayList<String>();
+	
+	/**
+	 * The capacity and overflow policy of each client's queue.
+	 */
+	private int queueCapacity = 0;
+	private CallbackQueue.Overflow queueOverflow = CallbackQueue.Overflow.BLOCK;
+	
 	/**
 	 * Constructor.
 	 */
 	public CallbackServer() {
 		//System.out.println("CallbackServer()");
 		this.active = false;
-		this.empty = true;
 		this.port = 0;
-		this.javascript = new LinkedList<String>();		
+		this.javascript = new CallbackQueue();
+		this.defaultClient = new Client(this.javascript);
+		this.clients = new ConcurrentHashMap<String, Client>();
 	}
 	
 	/**
@@ -146,12 +302,85 @@ public class CallbackServer implements Runnable {
 		return this.token;
 	}
 	
+	/**
+	 * Set the limits used when draining queued JavaScript statements into one batch.
+	 * A count of 1 sends one statement per response.
+	 * 
+	 * @param count			Maximum number of statements per batch
+	 * @param size			Maximum number of characters per batch
+	 */
+	public void setBatchLimits(int count, int size) {
+		this.batchCount = (count > 0) ? count : 1;
+		this.batchSize = (size > 0) ? size : 1;
+	}
+	
+	/**
+	 * Set the range of delays that polling clients are told to wait between polls.
+	 * 
+	 * @param min			Delay in msec while statements are being sent
+	 * @param max			Longest delay in msec when idle
+	 */
+	public void setPollDelays(int min, int max) {
+		this.minPollDelay = (min > 0) ? min : 1;
+		this.maxPollDelay = Math.max(max, this.minPollDelay);
+		this.pollDelay = this.minPollDelay;
+	}
+	
+	/**
+	 * Set the capacity and overflow policy of the JavaScript statement queue of each client.
+	 * 
+	 * @param capacity		Maximum number of queued statements (0 = unbounded)
+	 * @param overflow		What to do when a statement is sent while the queue is full
+	 */
+	public void setQueueLimits(int capacity, CallbackQueue.Overflow overflow) {
+		this.queueCapacity = capacity;
+		this.queueOverflow = overflow;
+		this.javascript.setLimits(capacity, overflow);
+		for (Client client : this.clients.values()) {
+			client.javascript.setLimits(capacity, overflow);
+		}
+	}
+	
+	/**
+	 * Add a client, such as another web view, that has its own list of JavaScript statements.
+	 * The client connects with the returned token instead of getToken().
+	 * 
+	 * @return				The security token of the client
+	 */
+	public String addClient() {
+		String clientToken = java.util.UUID.randomUUID().toString();
+		this.clients.put(clientToken, new Client(new CallbackQueue(this.queueCapacity, this.queueOverflow)));
+		return clientToken;
+	}
+	
+	/**
+	 * Remove a client added with addClient().  Any statements not yet sent to it are discarded.
+	 * 
+	 * @param clientToken	The security token of the client
+	 */
+	public void removeClient(String clientToken) {
+		Client client = this.clients.remove(clientToken);
+		if (client != null) {
+			client.javascript.clear();
+			this.wakeup();
+		}
+	}
+	
 	/**
 	 * Start the server on a new thread.
 	 */
 	public void startServer() {
 		//System.out.println("CallbackServer.startServer()");
-		this.active = false;
+		
+		// Stop the server thread that is already running, so it releases its connections
+		Thread thread = this.serverThread;
+		if ((thread != null) && thread.isAlive()) {
+			this.stopServer();
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) { }
+		}
+		this.active = true;
 		
 		// Start server on new thread
 		this.serverThread = new Thread(this);
@@ -175,89 +404,469 @@ public class CallbackServer implements Runnable {
 	 * This is called automatically when the server thread is started.
 	 */
 	public void run() {
+		Selector selector = null;
+		ServerSocketChannel server = null;
 		
 		// Start server
 		try {
-			this.active = true;
-			String request;
-			ServerSocket waitSocket = new ServerSocket(0);
-			this.port = waitSocket.getLocalPort();
+			selector = Selector.open();
+			server = ServerSocketChannel.open();
+			server.socket().bind(new InetSocketAddress(0));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			this.port = server.socket().getLocalPort();
 			//System.out.println("CallbackServer -- using port " +this.port);
+			
+			// Replace token of default client
+			if (this.token != null) {
+				this.clients.remove(this.token);
+			}
 			this.token = java.util.UUID.randomUUID().toString();
+			this.clients.put(this.token, this.defaultClient);
 			//System.out.println("CallbackServer -- using token "+this.token);
+			this.selector = selector;
 
-			 while (this.active) {
-				 //System.out.println("CallbackServer: Waiting for data on socket");
-				 Socket connection = waitSocket.accept();
-				 BufferedReader xhrReader = new BufferedReader(new InputStreamReader(connection.getInputStream()),40);
-				 DataOutputStream output = new DataOutputStream(connection.getOutputStream());
-				 request = xhrReader.readLine();
-				 String response = "";
-				 //System.out.println("CallbackServerRequest="+request);
-				 if (this.active && (request != null)) {
-					 if (request.contains("GET")) {
-						 
-						 // Get requested file
-						 String[] requestParts = request.split(" "); 
-						 
-						 // Must have security token
-						 if ((requestParts.length == 3) && (requestParts[1].substring(1).equals(this.token))) {
-							 //System.out.println("CallbackServer -- Processing GET request");
-
-							 // Wait until there is some data to send, or send empty data every 10 sec 
-							 // to prevent XHR timeout on the client 
-							 synchronized (this) { 
-								 while (this.empty) { 
-									 try { 
-										 this.wait(10000); // prevent timeout from happening
-										 //System.out.println("CallbackServer>>> break <<<");
-										 break;
-									 } 
-									 catch (Exception e) { }
-								 } 
-							 }
-
-							 // If server is still running
-							 if (this.active) {
-
-								 // If no data, then send 404 back to client before it times out
-								 if (this.empty) {
-									 //System.out.println("CallbackServer -- sending data 0");
-									 response = "HTTP/1.1 404 NO DATA\r\n\r\n "; // need to send content otherwise some Android devices fail, so send space
-								 }
-								 else {
-									 //System.out.println("CallbackServer -- sending item");
-									 response = "HTTP/1.1 200 OK\r\n\r\n";
-									 String js = this.getJavascript();
-									 if (js != null) {
-										 response += encode(js, "UTF-8");
-									 }
-								 }
-							 }
-							 else {
-								 response = "HTTP/1.1 503 Service Unavailable\r\n\r\n ";							 
-							 }
-						 }
-						 else {
-							 response = "HTTP/1.1 403 Forbidden\r\n\r\n ";						 
-						 }
-					 }
-					 else {
-						 response = "HTTP/1.1 400 Bad Request\r\n\r\n ";
-					 }
-					 //System.out.println("CallbackServer: response="+response);
-					 //System.out.println("CallbackServer: closing output");
-					 output.writeBytes(response);
-					 output.flush();
-				 }
-				 output.close();
-				 xhrReader.close();
-			 }
-		 } catch (IOException e) {
-			 e.printStackTrace();
-		 }
-		 this.active = false;
-		 //System.out.println("CallbackServer.startServer() - EXIT");
+			while (this.isRunning()) {
+				selector.select(this.getSelectTimeout());
+				if (!this.isRunning()) {
+					break;
+				}
+				
+				// Handle connections that are ready
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							SocketChannel channel = server.accept();
+							if (channel != null) {
+								channel.configureBlocking(false);
+								channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+							}
+						}
+						else if (key.isReadable()) {
+							this.read(key);
+						}
+						else if (key.isWritable()) {
+							this.write(key);
+						}
+					} catch (IOException e) {
+						// Client closed the connection
+						Log.d(LOG_TAG, "Connection closed: " + e.getMessage());
+						this.close(key);
+					}
+				}
+				
+				// Send data to connections that are waiting for it
+				this.service();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (this.serverThread == Thread.currentThread()) {
+			this.active = false;
+			this.selector = null;
+			this.blobs.clear();
+		}
+		
+		// Let waiting clients know that the server is stopping
+		if (selector != null) {
+			for (SelectionKey key : selector.keys()) {
+				Object attachment = key.attachment();
+				if (attachment instanceof Connection) {
+					Connection connection = (Connection)attachment;
+					if ((connection.client != null) && !connection.stream && (connection.response == null)) {
+						try {
+							connection.channel.write(ByteBuffer.wrap(getBytes("HTTP/1.1 503 Service Unavailable\r\n\r\n ")));
+						} catch (IOException e) { }
+					}
+				}
+				this.close(key);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) { }
+		}
+		if (server != null) {
+			try {
+				server.close();
+			} catch (IOException e) { }
+		}
+		//System.out.println("CallbackServer.startServer() - EXIT");
+	}
+	
+	/**
+	 * Determine if the current thread should keep running the server.
+	 * 
+	 * @return boolean
+	 */
+	private boolean isRunning() {
+		return this.active && (this.serverThread == Thread.currentThread());
+	}
+	
+	/**
+	 * Read the request line from a connection and handle the request.
+	 * 
+	 * @param key			The selection key of the connection
+	 * @throws IOException
+	 */
+	private void read(SelectionKey key) throws IOException {
+		Connection connection = (Connection)key.attachment();
+		if (connection.channel.read(connection.request) < 0) {
+			this.close(key);
+			return;
+		}
+		
+		// Wait until the whole request line has been received
+		String request = null;
+		ByteBuffer buf = connection.request;
+		for (int i = 0; i < buf.position(); i++) {
+			if (buf.get(i) == '\n') {
+				request = new String(buf.array(), 0, i, "US-ASCII").trim();
+				break;
+			}
+		}
+		if (request == null) {
+			if (!buf.hasRemaining()) {
+				this.respond(key, "HTTP/1.1 400 Bad Request\r\n\r\n ");
+			}
+			return;
+		}
+		//System.out.println("CallbackServerRequest="+request);
+		
+		// The rest of the request is not needed
+		key.interestOps(0);
+		
+		if (request.contains("GET")) {
+			
+			// Get requested file
+			String[] requestParts = request.split(" ");
+			String path = (requestParts.length == 3) ? requestParts[1].substring(1) : "";
+			String resource = "";
+			int slash = path.indexOf('/');
+			if (slash >= 0) {
+				resource = path.substring(slash + 1);
+				path = path.substring(0, slash);
+			}
+			
+			// Must have security token
+			Client client = this.clients.get(path);
+			if (client == null) {
+				this.respond(key, "HTTP/1.1 403 Forbidden\r\n\r\n ");
+			}
+			
+			// Streaming request: keep connection open and write statements as they arrive
+			else if (resource.equals("stream")) {
+				connection.client = client;
+				connection.stream = true;
+				connection.response = ByteBuffer.wrap(getBytes("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nCache-Control: no-cache\r\nTransfer-Encoding: chunked\r\n\r\n"));
+				this.park(connection);
+				this.write(key);
+			}
+			
+			// Wait until there is some data to send, or send empty data every 10 sec 
+			// to prevent XHR timeout on the client 
+			else if (resource.length() == 0) {
+				//System.out.println("CallbackServer -- Processing GET request");
+				connection.client = client;
+				this.park(connection);
+			}
+			
+			// Binary data can only be read once
+			else if (resource.startsWith("blob/")) {
+				Blob blob = this.blobs.remove(resource.substring(5));
+				if (blob == null) {
+					this.respond(key, "HTTP/1.1 404 Not Found\r\nAccess-Control-Allow-Origin: *\r\n\r\n ");
+				}
+				else {
+					connection.response = ByteBuffer.wrap(getBytes("HTTP/1.1 200 OK\r\nContent-Type: " + blob.mimeType 
+							+ "\r\nContent-Length: " + blob.data.remaining() 
+							+ "\r\nAccess-Control-Allow-Origin: *\r\nCache-Control: no-cache\r\n\r\n"));
+					connection.body = blob.data;
+					connection.close = true;
+					this.write(key);
+				}
+			}
+			else {
+				this.respond(key, "HTTP/1.1 403 Forbidden\r\n\r\n ");
+			}
+		}
+		else {
+			this.respond(key, "HTTP/1.1 400 Bad Request\r\n\r\n ");
+		}
+	}
+	
+	/**
+	 * Write pending response data to a connection.
+	 * 
+	 * @param key			The selection key of the connection
+	 * @throws IOException
+	 */
+	private void write(SelectionKey key) throws IOException {
+		Connection connection = (Connection)key.attachment();
+		while (connection.response != null) {
+			connection.channel.write(connection.response);
+			if (connection.response.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			if (connection.shared) {
+				this.releaseBuffer(connection.client, connection.response);
+				connection.shared = false;
+			}
+			connection.response = connection.body;
+			connection.body = null;
+		}
+		key.interestOps(0);
+		if (connection.close) {
+			this.close(key);
+		}
+	}
+	
+	/**
+	 * Send a complete response to a connection and close it.
+	 * 
+	 * @param key			The selection key of the connection
+	 * @param response		The response
+	 * @throws IOException
+	 */
+	private void respond(SelectionKey key, String response) throws IOException {
+		Connection connection = (Connection)key.attachment();
+		//System.out.println("CallbackServer: response="+response);
+		connection.response = ByteBuffer.wrap(getBytes(response));
+		connection.close = true;
+		this.write(key);
+	}
+	
+	/**
+	 * Hold a connection open until its client has data or the wait times out.
+	 * 
+	 * @param connection
+	 */
+	private void park(Connection connection) {
+		connection.deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+		connection.client.connections.add(connection);
+		connection.client.waiting = true;
+	}
+	
+	/**
+	 * Close a connection.
+	 * 
+	 * @param key			The selection key of the connection
+	 */
+	private void close(SelectionKey key) {
+		Object attachment = key.attachment();
+		if (attachment instanceof Connection) {
+			Connection connection = (Connection)attachment;
+			if (connection.shared) {
+				this.releaseBuffer(connection.client, connection.response);
+				connection.shared = false;
+			}
+			if (connection.client != null) {
+				connection.client.connections.remove(connection);
+				connection.client.waiting = !connection.client.connections.isEmpty();
+			}
+		}
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) { }
+	}
+	
+	/**
+	 * Send queued statements to the connections waiting for them, and send empty responses 
+	 * to connections that have waited too long.
+	 */
+	private void service() {
+		long now = System.currentTimeMillis();
+		for (Client client : this.clients.values()) {
+			if (client.connections.isEmpty()) {
+				continue;
+			}
+			Connection[] connections = client.connections.toArray(new Connection[client.connections.size()]);
+			for (Connection connection : connections) {
+				SelectionKey key = connection.channel.keyFor(this.selector);
+				if ((key == null) || !key.isValid()) {
+					continue;
+				}
+				
+				// Don't write more to a stream until previous data has been sent
+				if (connection.response != null) {
+					continue;
+				}
+				try {
+					boolean data = this.drainBatch(client.javascript, this.batch);
+					boolean timeout = (now >= connection.deadline);
+					if (connection.stream) {
+						if (data || timeout) {
+							
+							// Chunk size is written as fixed width hex, and filled in once the 
+							// encoded length is known
+							ByteBuffer buf = this.acquireBuffer(client);
+							int start = buf.position();
+							buf = putAscii(buf, "00000000\r\n");
+							buf = this.encodeBatch(this.batch, buf);
+							buf = putAscii(buf, "\n");
+							int length = buf.position() - start - 10;
+							for (int i = 7, n = length; i >= 0; i--, n >>>= 4) {
+								buf.put(start + i, (byte)digits.charAt(n & 0xf));
+							}
+							buf = putAscii(buf, "\r\n");
+							connection.sent += length;
+							
+							// End the stream so the client can release its buffered response
+							if (connection.sent >= STREAM_LIMIT) {
+								buf = putAscii(buf, "0\r\n\r\n");
+								connection.close = true;
+							}
+							connection.deadline = now + WAIT_TIMEOUT;
+							this.sendBuffer(key, connection, buf);
+						}
+					}
+					else if (data) {
+						//System.out.println("CallbackServer -- sending item");
+						client.connections.remove(connection);
+						ByteBuffer buf = this.acquireBuffer(client);
+						buf = putAscii(buf, "HTTP/1.1 200 OK\r\n\r\n");
+						buf = this.encodeBatch(this.batch, buf);
+						connection.close = true;
+						this.sendBuffer(key, connection, buf);
+					}
+					
+					// If no data, then send 404 back to client before it times out
+					else if (timeout) {
+						//System.out.println("CallbackServer -- sending data 0");
+						client.connections.remove(connection);
+						this.respond(key, "HTTP/1.1 404 NO DATA\r\n\r\n "); // need to send content otherwise some Android devices fail, so send space
+					}
+				} catch (IOException e) {
+					Log.d(LOG_TAG, "Connection closed: " + e.getMessage());
+					this.close(key);
+				}
+			}
+			client.waiting = !client.connections.isEmpty();
+		}
+	}
+	
+	/**
+	 * Get a client's response buffer, ready to be filled.
+	 * If the buffer is still being written to another connection, then a new one is used.
+	 * 
+	 * @param client
+	 * @return ByteBuffer
+	 */
+	private ByteBuffer acquireBuffer(Client client) {
+		if (client.bufferBusy || (client.buffer == null)) {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		client.bufferBusy = true;
+		ByteBuffer buf = client.buffer;
+		buf.clear();
+		return buf;
+	}
+	
+	/**
+	 * Return a response buffer to its client for reuse, unless it has grown too large to keep.
+	 * 
+	 * @param client
+	 * @param buf
+	 */
+	private void releaseBuffer(Client client, ByteBuffer buf) {
+		client.buffer = (buf.capacity() <= BUFFER_RETAIN) ? buf : null;
+		client.bufferBusy = false;
+	}
+	
+	/**
+	 * Start writing a filled response buffer to a connection.
+	 * 
+	 * @param key			The selection key of the connection
+	 * @param connection
+	 * @param buf			The response buffer, which may have been grown from the one acquired
+	 * @throws IOException
+	 */
+	private void sendBuffer(SelectionKey key, Connection connection, ByteBuffer buf) throws IOException {
+		buf.flip();
+		connection.response = buf;
+		connection.shared = true;
+		this.write(key);
+	}
+	
+	/**
+	 * Get the time to wait in select() before the next connection times out.
+	 * 
+	 * @return				Time in msec, or 0 to wait until woken up
+	 */
+	private long getSelectTimeout() {
+		long deadline = Long.MAX_VALUE;
+		for (Client client : this.clients.values()) {
+			for (Connection connection : client.connections) {
+				if (connection.deadline < deadline) {
+					deadline = connection.deadline;
+				}
+			}
+		}
+		if (deadline == Long.MAX_VALUE) {
+			return 0;
+		}
+		long timeout = deadline - System.currentTimeMillis();
+		return (timeout > 0) ? timeout : 1;
+	}
+	
+	/**
+	 * Wake up the server thread.
+	 */
+	private void wakeup() {
+		Selector selector = this.selector;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Get the bytes of an ASCII response.
+	 * 
+	 * @param s
+	 * @return
+	 */
+	private static byte[] getBytes(String s) throws UnsupportedEncodingException {
+		return s.getBytes("US-ASCII");
+	}
+	
+	/**
+	 * Write an ASCII string to a buffer, growing it if needed.
+	 * 
+	 * @param buf
+	 * @param s
+	 * @return				The buffer, which is a new one if it had to grow
+	 */
+	private static ByteBuffer putAscii(ByteBuffer buf, String s) {
+		int n = s.length();
+		if (buf.remaining() < n) {
+			buf = grow(buf, n);
+		}
+		for (int i = 0; i < n; i++) {
+			buf.put((byte)s.charAt(i));
+		}
+		return buf;
+	}
+	
+	/**
+	 * Copy a buffer into a larger one.
+	 * 
+	 * @param buf
+	 * @param needed		Number of bytes that must fit after the current position
+	 * @return ByteBuffer
+	 */
+	private static ByteBuffer grow(ByteBuffer buf, int needed) {
+		int capacity = Math.max(buf.capacity() * 2, buf.position() + needed);
+		ByteBuffer larger = ByteBuffer.allocateDirect(capacity);
+		buf.flip();
+		larger.put(buf);
+		return larger;
 	}
 		
 	/**
@@ -270,12 +879,62 @@ public class CallbackServer implements Runnable {
 			this.active = false;
 
 			// Break out of server wait
-			synchronized (this) { 
-				this.notify();
-			}
+			this.wakeup();
 		}		
 	}
 
+	/**
+	 * Add binary data to be read by the client.
+	 * 
+	 * @param data
+	 * @param mimeType		The content type of the data
+	 * @return				URL to read the data from, or null if the server isn't running
+	 */
+	public String addBlob(byte[] data, String mimeType) {
+		return this.addBlob(ByteBuffer.wrap(data), mimeType);
+	}
+	
+	/**
+	 * Add a file to be read by the client.
+	 * The file is mapped into memory instead of being copied.
+	 * 
+	 * @param file
+	 * @param mimeType		The content type of the file
+	 * @return				URL to read the file from, or null if the server isn't running
+	 * @throws IOException
+	 */
+	public String addBlob(File file, String mimeType) throws IOException {
+		if (!this.active || (this.port == 0)) {
+			return null;
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			return this.addBlob(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), mimeType);
+		} finally {
+			in.close();
+		}
+	}
+	
+	private String addBlob(ByteBuffer data, String mimeType) {
+		if (!this.active || (this.port == 0)) {
+			return null;
+		}
+		
+		// Discard blobs that were never read
+		long now = System.currentTimeMillis();
+		Iterator<Blob> it = this.blobs.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expires < now) {
+				it.remove();
+			}
+		}
+		
+		String id = java.util.UUID.randomUUID().toString();
+		this.blobs.put(id, new Blob(data, (mimeType != null) ? mimeType : "application/octet-stream"));
+		return "http://127.0.0.1:" + this.port + "/" + this.token + "/blob/" + id;
+	}
+	
     /**
      * Destroy
      */
@@ -294,23 +953,196 @@ public class CallbackServer implements Runnable {
 		return size;
 	}
 	
+	/**
+	 * Wait until there are fewer than a number of JavaScript statements in the list.
+	 * 
+	 * @param size			The number of statements
+	 * @param timeout		Maximum msec to wait
+	 * @return				F=timed out or interrupted
+	 */
+	public boolean waitForSize(int size, long timeout) {
+		return this.javascript.awaitSizeBelow(size, timeout);
+	}
+	
+	/**
+	 * Wait until there are fewer than a number of JavaScript statements for a callback in the list.
+	 * 
+	 * @param callbackId	The callback id the statements are for
+	 * @param size			The number of statements
+	 * @param timeout		Maximum msec to wait
+	 * @return				F=timed out or interrupted
+	 */
+	public boolean waitForSize(String callbackId, int size, long timeout) {
+		return this.javascript.awaitKeyBelow(callbackId, size, timeout);
+	}
+	
 	/**
 	 * Get the next JavaScript statement and remove from list.
 	 *  
 	 * @return String
 	 */
 	public String getJavascript() {
-		if (this.javascript.size() == 0) {
+		String statement = this.javascript.poll();
+		//System.out.println("CallbackServer.getJavascript() = " + statement);
+		return statement;
+	}
+	
+	/**
+	 * Get as many JavaScript statements as the batch limits allow and remove them from list.
+	 * Each statement is framed as <length>:<statement> so the client can split them.
+	 * 
+	 * @return String
+	 */
+	public String getJavascriptBatch() {
+		return this.getJavascriptBatch(this.javascript);
+	}
+	
+	/**
+	 * Get the reply to a poll from JavaScript.  This is a header of
+	 * 
+	 * 		<statements remaining>,<msec to wait before next poll>|
+	 * 
+	 * followed by a batch as returned by getJavascriptBatch(), which may be empty.
+	 * 
+	 * If statements remain after the batch, the client should poll again at once.
+	 * Otherwise the delay follows the rate that statements have been sent recently,
+	 * and doubles after each poll that finds nothing, up to the maximum poll delay.
+	 * 
+	 * @return String
+	 */
+	public String getJavascriptPoll() {
+		long now = System.currentTimeMillis();
+		int arrived = this.javascript.size() - this.lastPollRemaining;
+		if ((arrived > 0) && (this.lastPollTime > 0)) {
+			long interval = (now - this.lastPollTime) / arrived;
+			this.pollInterval = (this.pollInterval * 3 + interval) / 4;
+		}
+		
+		String batch = this.getJavascriptBatch(this.javascript);
+		int remaining = this.javascript.size();
+		this.lastPollTime = now;
+		this.lastPollRemaining = remaining;
+		this.pollCount.incrementAndGet();
+		
+		int delay;
+		if (remaining > 0) {
+			delay = 0;
+		}
+		else if (batch != null) {
+			// Poll again about when the next statement is expected, within the poll delay limits
+			delay = (int) Math.max(this.minPollDelay, Math.min(this.pollInterval, this.maxPollDelay));
+			this.pollDelay = this.minPollDelay;
+		}
+		else {
+			this.emptyPollCount.incrementAndGet();
+			delay = this.pollDelay;
+			this.pollDelay = Math.min(delay * 2, this.maxPollDelay);
+		}
+		//System.out.println("CallbackServer.getJavascriptPoll() remaining="+remaining+" delay="+delay);
+		
+		StringBuilder reply = new StringBuilder(16 + ((batch != null) ? batch.length() : 0));
+		reply.append(remaining).append(',').append(delay).append('|');
+		if (batch != null) {
+			reply.append(batch);
+		}
+		return reply.toString();
+	}
+	
+	/**
+	 * Get the number of polls answered by getJavascriptPoll().
+	 * 
+	 * @return int
+	 */
+	public int getPollCount() {
+		return this.pollCount.get();
+	}
+	
+	/**
+	 * Get the number of polls answered by getJavascriptPoll() that had no statements.
+	 * 
+	 * @return int
+	 */
+	public int getEmptyPollCount() {
+		return this.emptyPollCount.get();
+	}
+	
+	/**
+	 * Get as many JavaScript statements for a client as the batch limits allow and remove 
+	 * them from its list.  This is used by clients added with addClient() that use polling.
+	 * 
+	 * @param clientToken	The security token of the client
+	 * @return String
+	 */
+	public String getJavascriptBatch(String clientToken) {
+		Client client = this.clients.get(clientToken);
+		return (client != null) ? this.getJavascriptBatch(client.javascript) : null;
+	}
+	
+	/**
+	 * Get as many JavaScript statements from a queue as the batch limits allow.
+	 * 
+	 * @param queue
+	 * @return String
+	 */
+	private String getJavascriptBatch(CallbackQueue queue) {
+		ArrayList<String> statements = new ArrayList<String>();
+		if (!this.drainBatch(queue, statements)) {
 			return null;
 		}
-		String statement = this.javascript.remove(0);
-		//System.out.println("CallbackServer.getJavascript() = " + statement);
-		if (this.javascript.size() == 0) {
-			synchronized (this) { 
-				this.empty = true;
+		int length = 0;
+		for (String statement : statements) {
+			length += statement.length() + 8;
+		}
+		StringBuilder batch = new StringBuilder(length);
+		for (String statement : statements) {
+			batch.append(statement.length()).append(':').append(statement);
+		}
+		return batch.toString();
+	}
+	
+	/**
+	 * Remove as many JavaScript statements from a queue as the batch limits allow.
+	 * 
+	 * @param queue
+	 * @param statements	List that receives the statements (cleared first)
+	 * @return				T=at least one statement was removed
+	 */
+	private boolean drainBatch(CallbackQueue queue, ArrayList<String> statements) {
+		statements.clear();
+		String statement = queue.poll();
+		int length = 0;
+		while (statement != null) {
+			statements.add(statement);
+			length += statement.length();
+			if ((statements.size() >= this.batchCount) || (length >= this.batchSize)) {
+				break;
+			}
+			
+			// Don't let the next statement push the batch over the size limit
+			String next = queue.peek();
+			if ((next == null) || (length + next.length() > this.batchSize)) {
+				break;
 			}
+			statement = queue.poll();
 		}
-		return statement;
+		return statements.size() > 0;
+	}
+	
+	/**
+	 * Write a batch of statements, framed as <length>:<statement> and url encoded, to a buffer.
+	 * 
+	 * @param statements
+	 * @param buf
+	 * @return				The buffer, which is a new one if it had to grow
+	 */
+	private ByteBuffer encodeBatch(ArrayList<String> statements, ByteBuffer buf) {
+		for (String statement : statements) {
+			buf = putAscii(buf, Integer.toString(statement.length()));
+			buf = putAscii(buf, ":");
+			buf = encode(statement, buf);
+		}
+		statements.clear();
+		return buf;
 	}
 	
 	/**
@@ -319,11 +1151,65 @@ public class CallbackServer implements Runnable {
 	 * @param statement
 	 */
 	public void sendJavascript(String statement) {
+		this.sendJavascript(statement, null);
+	}
+	
+	/**
+	 * Add a JavaScript statement for a callback to the list.
+	 * 
+	 * @param statement
+	 * @param callbackId	The callback id the statement is for, used to coalesce statements when the list is full
+	 */
+	public void sendJavascript(String statement, String callbackId) {
+		this.send(this.defaultClient, statement, callbackId, false);
+	}
+	
+	/**
+	 * Add a JavaScript statement for a callback to the list.
+	 * 
+	 * @param statement
+	 * @param callbackId	The callback id the statement is for
+	 * @param coalesce		T=replace the statement for callbackId that hasn't been sent yet, if any
+	 */
+	public void sendJavascript(String statement, String callbackId, boolean coalesce) {
+		this.send(this.defaultClient, statement, callbackId, coalesce);
+	}
+	
+	/**
+	 * Add a JavaScript statement for a callback to the list of a client added with addClient().
+	 * 
+	 * @param clientToken	The security token of the client
+	 * @param statement
+	 * @param callbackId	The callback id the statement is for (can be null)
+	 */
+	public void sendJavascriptToClient(String clientToken, String statement, String callbackId) {
+		Client client = this.clients.get(clientToken);
+		if (client != null) {
+			this.send(client, statement, callbackId, false);
+		}
+	}
+	
+	/**
+	 * Add a JavaScript statement to the list of a client.
+	 * 
+	 * @param client
+	 * @param statement
+	 * @param callbackId
+	 * @param coalesce
+	 */
+	private void send(Client client, String statement, String callbackId, boolean coalesce) {
 		//System.out.println("CallbackServer.sendJavascript("+statement+")");
-		this.javascript.add(statement);
-		synchronized (this) { 
-			this.empty = false;
-			this.notify();
+		if (!client.javascript.offer(callbackId, statement, coalesce)) {
+			Log.d(LOG_TAG, "Interrupted while waiting to send JavaScript statement");
+			return;
+		}
+		
+		// A polling client backs off while idle, so shorten its next wait
+		this.pollDelay = this.minPollDelay;
+		
+		// Only wake up the server thread if it has connections waiting for data
+		if (client.waiting) {
+			this.wakeup();
 		}
 	}
 	
@@ -404,4 +1290,74 @@ public class CallbackServer implements Runnable {
     }
     
     /* end */
+    
+    /**
+     * Characters that encode() leaves as is.
+     */
+    private static final boolean[] SAFE = new boolean[128];
+    static {
+    	for (char ch = 'a'; ch <= 'z'; ch++) SAFE[ch] = true;
+    	for (char ch = 'A'; ch <= 'Z'; ch++) SAFE[ch] = true;
+    	for (char ch = '0'; ch <= '9'; ch++) SAFE[ch] = true;
+    	String others = " .-*_'(),<>=?@[]{}:~\"\\/;!";
+    	for (int i = 0; i < others.length(); i++) SAFE[others.charAt(i)] = true;
+    }
+    
+    /**
+     * Encode a string the same way as encode(s, "UTF-8"), but write the result directly
+     * to a buffer instead of creating intermediate strings and byte arrays.
+     * 
+     * @param s				The string to be encoded
+     * @param buf			The buffer to write to
+     * @return				The buffer, which is a new one if it had to grow
+     */
+    static ByteBuffer encode(String s, ByteBuffer buf) {
+    	int n = s.length();
+    	for (int i = 0; i < n; i++) {
+    		
+    		// Worst case is a 4 byte UTF-8 sequence, which takes 12 bytes once encoded
+    		if (buf.remaining() < 12) {
+    			buf = grow(buf, Math.max(12, n - i));
+    		}
+    		int ch = s.charAt(i);
+    		if (ch < 0x80) {
+    			if (SAFE[ch]) {
+    				buf.put((byte)ch);
+    			}
+    			else {
+    				putEscaped(buf, ch);
+    			}
+    		}
+    		else if (ch < 0x800) {
+    			putEscaped(buf, 0xc0 | (ch >> 6));
+    			putEscaped(buf, 0x80 | (ch & 0x3f));
+    		}
+    		else if ((ch >= 0xd800) && (ch <= 0xdfff)) {
+    			
+    			// Surrogate pair is a single code point, an unpaired surrogate is encoded as '?'
+    			if ((ch <= 0xdbff) && (i + 1 < n) && Character.isLowSurrogate(s.charAt(i + 1))) {
+    				int cp = Character.toCodePoint((char)ch, s.charAt(++i));
+    				putEscaped(buf, 0xf0 | (cp >> 18));
+    				putEscaped(buf, 0x80 | ((cp >> 12) & 0x3f));
+    				putEscaped(buf, 0x80 | ((cp >> 6) & 0x3f));
+    				putEscaped(buf, 0x80 | (cp & 0x3f));
+    			}
+    			else {
+    				putEscaped(buf, '?');
+    			}
+    		}
+    		else {
+    			putEscaped(buf, 0xe0 | (ch >> 12));
+    			putEscaped(buf, 0x80 | ((ch >> 6) & 0x3f));
+    			putEscaped(buf, 0x80 | (ch & 0x3f));
+    		}
+    	}
+    	return buf;
+    }
+    
+    private static void putEscaped(ByteBuffer buf, int b) {
+    	buf.put((byte)'%');
+    	buf.put((byte)digits.charAt((b >> 4) & 0xf));
+    	buf.put((byte)digits.charAt(b & 0xf));
+    }
 }
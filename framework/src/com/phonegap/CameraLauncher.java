@@ -41,6 +41,7 @@ public class CameraLauncher extends Plugin {
 
     private static final int DATA_URL = 0;              // Return base64 encoded string
     private static final int FILE_URI = 1;              // Return file uri (content://media/external/images/media/2 for Android)
+    private static final int BLOB_URL = 2;              // Return URL of image data served by the callback server
     
     private static final int PHOTOLIBRARY = 0;          // Choose image from picture library (same as SAVEDPHOTOALBUM for Android)
     private static final int CAMERA = 1;                // Take picture from camera
@@ -289,8 +290,8 @@ public class CameraLauncher extends Plugin {
                     bitmap = scaleBitmap(bitmap);
                     
                     // If sending base64 image back
-                    if (destType == DATA_URL) {
-                        this.processPicture(bitmap);
+                    if ((destType == DATA_URL) || (destType == BLOB_URL)) {
+                        this.processPicture(bitmap, destType);
                         checkForDuplicateImage(DATA_URL);
                     }
 
@@ -363,11 +364,11 @@ public class CameraLauncher extends Plugin {
                 }
                 else {
                     // If sending base64 image back
-                    if (destType == DATA_URL) {
+                    if ((destType == DATA_URL) || (destType == BLOB_URL)) {
                         try {
                             Bitmap bitmap = android.graphics.BitmapFactory.decodeStream(resolver.openInputStream(uri));
                             bitmap = scaleBitmap(bitmap);
-                            this.processPicture(bitmap);
+                            this.processPicture(bitmap, destType);
                             bitmap.recycle();
                             bitmap = null;
                             System.gc();
@@ -460,10 +461,26 @@ public class CameraLauncher extends Plugin {
      * @param bitmap
      */
     public void processPicture(Bitmap bitmap) {     
+        this.processPicture(bitmap, DATA_URL);
+    }
+
+    /**
+     * Compress bitmap using jpeg, and return it to JavaScript as a Base64 encoded string 
+     * or as the URL of the image data.
+     *
+     * @param bitmap
+     * @param destType      DATA_URL or BLOB_URL
+     */
+    public void processPicture(Bitmap bitmap, int destType) {     
         ByteArrayOutputStream jpeg_data = new ByteArrayOutputStream();
         try {
             if (bitmap.compress(CompressFormat.JPEG, mQuality, jpeg_data)) {
                 byte[] code  = jpeg_data.toByteArray();
+                if (destType == BLOB_URL) {
+                    jpeg_data = null;
+                    this.success(new PluginResult(PluginResult.Status.OK, code, "image/jpeg"), this.callbackId);
+                    return;
+                }
                 byte[] output = Base64.encodeBase64(code);
                 String js_out = new String(output);
                 this.success(new PluginResult(PluginResult.Status.OK, js_out), this.callbackId);
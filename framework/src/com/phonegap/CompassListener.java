@@ -7,7 +7,7 @@
  */
 package com.phonegap;
 
-import java.util.List;
+import java.util.ArrayList;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -18,15 +18,15 @@ import com.phonegap.api.Plugin;
 import com.phonegap.api.PluginResult;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.content.Context;
 
 /**
  * This class listens to the compass sensor and stores the latest heading value.
+ * 
+ * It can also push headings to JavaScript watches.  Each watch can have a SensorFilter,
+ * so headings are smoothed and thresholded here instead of in JavaScript.
  */
-public class CompassListener extends Plugin implements SensorEventListener {
+public class CompassListener extends Plugin implements SensorHub.Watcher {
 
     public static int STOPPED = 0;
     public static int STARTING = 1;
@@ -41,8 +41,29 @@ public class CompassListener extends Plugin implements SensorEventListener {
     long lastAccessTime;                // time the value was last retrieved
     int accuracy;                       // accuracy of the sensor
     
-    private SensorManager sensorManager;// Sensor manager
-    Sensor mSensor;                     // Compass sensor returned by sensor manager
+    private SensorHub sensorHub;        // Sensors shared with other plugins
+    private PendingCallbacks firstHeading = new PendingCallbacks(this);    // Calls waiting for the first heading
+    
+    private final ArrayList<Watch> watches = new ArrayList<Watch>();    // Watches from JavaScript (guarded by watches)
+    
+    /**
+     * A watch that headings are pushed to.
+     */
+    private static final class Watch {
+        final String id;                // Id of watch from JavaScript
+        final String callbackId;        // Callback that headings are sent to
+        final long frequency;           // Minimum msec between headings
+        final SensorFilter filter;      // Filter of headings (can be null)
+        final float[] filtered = new float[1];
+        long nextHeading = 0;           // Time the next heading is due
+        
+        Watch(String id, String callbackId, long frequency, SensorFilter filter) {
+            this.id = id;
+            this.callbackId = callbackId;
+            this.frequency = frequency;
+            this.filter = filter;
+        }
+    }
     
     /**
      * Constructor.
@@ -60,7 +81,7 @@ public class CompassListener extends Plugin implements SensorEventListener {
      */
     public void setContext(PhonegapActivity ctx) {
         super.setContext(ctx);
-        this.sensorManager = (SensorManager) ctx.getSystemService(Context.SENSOR_SERVICE);
+        this.sensorHub = SensorManagerSource.getDefaultHub(ctx);
     }
 
     /**
@@ -93,18 +114,10 @@ public class CompassListener extends Plugin implements SensorEventListener {
                     if (r == ERROR_FAILED_TO_START) {
                         return new PluginResult(PluginResult.Status.IO_EXCEPTION, ERROR_FAILED_TO_START);
                     }
-                    // Wait until running
-                    long timeout = 2000;
-                    while ((this.status == STARTING) && (timeout > 0)) {
-                        timeout = timeout - 100;
-                        try {
-                            Thread.sleep(100);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    if (timeout == 0) {
-                        return new PluginResult(PluginResult.Status.IO_EXCEPTION, AccelListener.ERROR_FAILED_TO_START);                     
+                    // Send heading when the first one is received, or an error if none is received in time
+                    if (this.status != RUNNING) {
+                        return this.firstHeading.add(callbackId, 2000, 
+                                new PluginResult(PluginResult.Status.IO_EXCEPTION, ERROR_FAILED_TO_START));
                     }
                 }
                 //float f = this.getHeading();
@@ -117,6 +130,19 @@ public class CompassListener extends Plugin implements SensorEventListener {
                 long l = this.getTimeout();
                 return new PluginResult(status, l);
             }
+            else if (action.equals("startWatch")) {
+                int r = this.startWatch(args.getString(0), callbackId, args.optLong(1, 100), 
+                        SensorFilter.create(args.optJSONObject(2), 1, 360));
+                if (r == ERROR_FAILED_TO_START) {
+                    return new PluginResult(PluginResult.Status.IO_EXCEPTION, ERROR_FAILED_TO_START);
+                }
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.NO_RESULT);
+                pluginResult.setKeepCallback(true);
+                return pluginResult;
+            }
+            else if (action.equals("stopWatch")) {
+                this.stopWatch(args.getString(0));
+            }
             return new PluginResult(status, result);
         } catch (JSONException e) {
             e.printStackTrace();
@@ -169,19 +195,11 @@ public class CompassListener extends Plugin implements SensorEventListener {
             return this.status;
         }
 
-        // Get accelerometer from sensor manager
-        List<Sensor> list = this.sensorManager.getSensorList(Sensor.TYPE_ORIENTATION);
-
-        // If found, then register as listener
-        if (list.size() > 0) {
-            this.mSensor = list.get(0);
-            this.sensorManager.registerListener(this, this.mSensor, SensorManager.SENSOR_DELAY_NORMAL);
-            this.lastAccessTime = System.currentTimeMillis();
-            this.setStatus(CompassListener.STARTING);
-        }
-
-        // If error, then set status to error
-        else {
+        // Watch orientation sensor.  If it is already running for someone else, then the
+        // most recent heading is received right away.
+        this.lastAccessTime = System.currentTimeMillis();
+        this.setStatus(CompassListener.STARTING);
+        if (!this.sensorHub.addWatcher(Sensor.TYPE_ORIENTATION, this, SensorManager.SENSOR_DELAY_NORMAL)) {
             this.setStatus(CompassListener.ERROR_FAILED_TO_START);
         }
         
@@ -193,30 +211,117 @@ public class CompassListener extends Plugin implements SensorEventListener {
      */
     public void stop() {
         if (this.status != CompassListener.STOPPED) {
-            this.sensorManager.unregisterListener(this);
+            this.sensorHub.removeWatcher(Sensor.TYPE_ORIENTATION, this);
         }
         this.setStatus(CompassListener.STOPPED);
+        if (this.firstHeading.isWaiting()) {
+            this.firstHeading.complete(new PluginResult(PluginResult.Status.IO_EXCEPTION, ERROR_FAILED_TO_START), false);
+        }
+        synchronized (this.watches) {
+            while (this.watches.size() > 0) {
+                Watch watch = this.watches.remove(this.watches.size() - 1);
+                this.success(new PluginResult(PluginResult.Status.NO_RESULT), watch.callbackId);
+            }
+        }
+    }
+    
+    /**
+     * Start pushing headings to JavaScript.
+     * 
+     * @param id            Id of watch
+     * @param callbackId    Callback that headings are sent to
+     * @param frequency     Minimum msec between headings
+     * @param filter        Filter of headings (can be null)
+     * @return              status of listener
+     */
+    public int startWatch(String id, String callbackId, long frequency, SensorFilter filter) {
+        int r = this.start();
+        if (r == CompassListener.ERROR_FAILED_TO_START) {
+            return r;
+        }
+        Watch watch = new Watch(id, callbackId, frequency, filter);
+        synchronized (this.watches) {
+            this.removeWatch(id);
+            this.watches.add(watch);
+        }
+        return r;
     }
     
+    /**
+     * Stop pushing headings to JavaScript.
+     * 
+     * @param id            Id of watch
+     */
+    public void stopWatch(String id) {
+        synchronized (this.watches) {
+            this.removeWatch(id);
+        }
+    }
     
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        // TODO Auto-generated method stub  
+    /**
+     * Remove a watch and release its callback.  Must be called holding watches.
+     * 
+     * @param id
+     */
+    private void removeWatch(String id) {
+        for (int i = 0; i < this.watches.size(); i++) {
+            Watch watch = this.watches.get(i);
+            if (watch.id.equals(id)) {
+                this.watches.remove(i);
+                this.success(new PluginResult(PluginResult.Status.NO_RESULT), watch.callbackId);
+                return;
+            }
+        }
     }
-
+    
+    
     /**
-     * Sensor listener event.
+     * Sensor sample from the sensor hub.
      * 
-     * @param SensorEvent event
+     * @param type          The sensor type
+     * @param timestamp     Time of sample in msec
+     * @param values        The values of the sample
      */
-    public void onSensorChanged(SensorEvent event) {
+    public void onSample(int type, long timestamp, float[] values) {
 
         // We only care about the orientation as far as it refers to Magnetic North
-        float heading = event.values[0];
+        float heading = values[0];
 
         // Save heading
-        this.timeStamp = System.currentTimeMillis();
+        this.timeStamp = timestamp;
         this.heading = heading;
         this.setStatus(CompassListener.RUNNING);
+        
+        // Send heading to calls that were waiting for the compass to start
+        if (this.firstHeading.isWaiting()) {
+            this.firstHeading.complete(new PluginResult(PluginResult.Status.OK, this.getCompassHeading(), "navigator.compass._castDate"), true);
+        }
+        
+        // Push heading to watches that are due and pass their filter
+        synchronized (this.watches) {
+            for (int i = 0; i < this.watches.size(); i++) {
+                Watch watch = this.watches.get(i);
+                float h = heading;
+                if (watch.filter != null) {
+                    if (!watch.filter.filter(values, watch.filtered)) {
+                        continue;
+                    }
+                    h = watch.filtered[0];
+                }
+                if (this.timeStamp >= watch.nextHeading) {
+                    if (watch.filter != null) {
+                        watch.filter.delivered(watch.filtered);
+                    }
+                    watch.nextHeading = this.timeStamp + watch.frequency;
+                    PluginResult result = new PluginResult(PluginResult.Status.OK, this.getCompassHeading(h), "navigator.compass._castDate");
+                    result.setKeepCallback(true);
+                    this.success(result, watch.callbackId);
+                }
+            }
+            if (this.watches.size() > 0) {
+                this.lastAccessTime = this.timeStamp;
+            }
+        }
 
         // If heading hasn't been read for TIMEOUT time, then turn off compass sensor to save power
         if ((this.timeStamp - this.lastAccessTime) > this.TIMEOUT) {
@@ -275,11 +380,21 @@ public class CompassListener extends Plugin implements SensorEventListener {
      * @return a compass heading
      */
     private JSONObject getCompassHeading() {
+        return this.getCompassHeading(this.getHeading());
+    }
+    
+    /**
+     * Create the CompassHeading JSON object to be returned to JavaScript
+     * 
+     * @param heading       The heading
+     * @return a compass heading
+     */
+    private JSONObject getCompassHeading(float heading) {
         JSONObject obj = new JSONObject();
         
         try {
-            obj.put("magneticHeading", this.getHeading());
-            obj.put("trueHeading", this.getHeading());
+            obj.put("magneticHeading", heading);
+            obj.put("trueHeading", heading);
             // Since the magnetic and true heading are always the same our and accuracy 
             // is defined as the difference between true and magnetic always return zero
             obj.put("headingAccuracy", 0);
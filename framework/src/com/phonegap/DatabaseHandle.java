@@ -0,0 +1,214 @@
+/*
+ * PhoneGap is available under *either* the terms of the modified BSD license *or* the
+ * MIT License (2008). See http://opensource.org/licenses/alphabetical for full text.
+ *
+ * Copyright (c) 2005-2010, Nitobi Software Inc.
+ * Copyright (c) 2010, IBM Corporation
+ */
+package com.phonegap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * This class is a database opened by the Storage plugin, with its compiled statements
+ * and its open transaction.
+ *
+ * A handle is only used by one thread at a time, since all calls for a database are run
+ * in the same execution lane.  The database can be closed while it isn't used, and is
+ * opened again when it is next acquired from the DatabaseRegistry.
+ */
+public class DatabaseHandle {
+
+	private static final String INSERT = "insert";
+	private static final String REPLACE = "replace";
+	private static final int MAX_STATEMENTS = 32;		// Compiled statements kept for reuse
+
+	private final String name;					// Database name
+	private final String file;					// Database file
+
+	private SQLiteDatabase db = null;			// Database object (null = closed)
+	String transaction = null;					// Id of open transaction
+	boolean transactionFailed = false;			// A statement of open transaction failed
+	private SQLiteStatement changes = null;	// Gets number of rows changed by last statement
+
+	// Used by DatabaseRegistry
+	int refs = 0;								// Number of calls using database
+	long lastUsed = 0;							// Time database was last released
+
+	// Compiled statements by SQL text, least recently used first
+	private LinkedHashMap<String, SQLiteStatement> statements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+			if (this.size() > MAX_STATEMENTS) {
+				eldest.getValue().close();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name				The name of the database
+	 * @param file				The database file
+	 */
+	public DatabaseHandle(String name, String file) {
+		this.name = name;
+		this.file = file;
+	}
+
+	/**
+	 * Get the name of the database.
+	 *
+	 * @return String
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Get the database file.
+	 *
+	 * @return String
+	 */
+	public String getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Get the database object.
+	 *
+	 * @return					The database, or null if it is closed
+	 */
+	public SQLiteDatabase getDatabase() {
+		return this.db;
+	}
+
+	/**
+	 * Determine if the database is open.
+	 *
+	 * @return boolean
+	 */
+	public boolean isOpen() {
+		return this.db != null;
+	}
+
+	/**
+	 * Open the database, if it isn't already.
+	 */
+	public void open() {
+		if (this.db == null) {
+			this.db = SQLiteDatabase.openOrCreateDatabase(this.file, null);
+		}
+	}
+
+	/**
+	 * Close the database.  An open transaction is rolled back.
+	 */
+	public void close() {
+		if (this.db == null) {
+			return;
+		}
+		if (this.transaction != null) {
+			this.endTransaction(this.transaction, false);
+		}
+		this.clearStatements();
+		this.db.close();
+		this.db = null;
+	}
+
+	/**
+	 * Start a transaction, unless it is already open.
+	 *
+	 * Transactions are run one at a time, and JavaScript only starts a transaction when
+	 * the previous one has ended.  A statement of another transaction is refused while
+	 * one is open, since the open transaction must not be committed before all of its
+	 * statements have run.
+	 *
+	 * @param id				Transaction id (null = run in open transaction, if any)
+	 * @throws SQLiteException	if another transaction is open
+	 */
+	public void beginTransaction(String id) {
+		if ((id == null) || id.equals(this.transaction)) {
+			return;
+		}
+		if (this.transaction != null) {
+			throw new SQLiteException("Another transaction is open");
+		}
+		this.db.beginTransaction();
+		this.transaction = id;
+		this.transactionFailed = false;
+	}
+
+	/**
+	 * End a transaction, if it is open.
+	 *
+	 * @param id				Transaction id
+	 * @param commit			T=commit, F=roll back
+	 */
+	public void endTransaction(String id, boolean commit) {
+		if ((this.transaction == null) || !this.transaction.equals(id)) {
+			return;
+		}
+		this.transaction = null;
+		if (commit && !this.transactionFailed) {
+			this.db.setTransactionSuccessful();
+		}
+		this.db.endTransaction();
+	}
+
+	/**
+	 * Run an insert, update or delete statement.  The statement is compiled the first
+	 * time it is run, and kept so that running it again only binds the parameters.
+	 *
+	 * @param query				The SQL statement
+	 * @param params			Parameters for the statement
+	 * @return					{rows affected, id of inserted row (-1 = none)}
+	 */
+	public long[] executeUpdate(String query, String[] params) {
+		SQLiteStatement statement = this.statements.get(query);
+		if (statement == null) {
+			statement = this.db.compileStatement(query);
+			this.statements.put(query, statement);
+		}
+		statement.clearBindings();
+		for (int i = 0; i < params.length; i++) {
+			statement.bindString(i + 1, params[i]);
+		}
+		long insertId = -1;
+		String cmd = query.trim().toLowerCase();
+		if (cmd.startsWith(INSERT) || cmd.startsWith(REPLACE)) {
+			insertId = statement.executeInsert();
+		}
+		else {
+			statement.execute();
+		}
+
+		// SQLiteStatement.executeUpdateDelete() is only available on Android 3.0+
+		if (this.changes == null) {
+			this.changes = this.db.compileStatement("SELECT changes()");
+		}
+		return new long[] { this.changes.simpleQueryForLong(), insertId };
+	}
+
+	/**
+	 * Close all compiled statements.  They are closed when the schema changes, since
+	 * they may refer to tables that are changed.
+	 */
+	public void clearStatements() {
+		for (SQLiteStatement statement : this.statements.values()) {
+			statement.close();
+		}
+		this.statements.clear();
+		if (this.changes != null) {
+			this.changes.close();
+			this.changes = null;
+		}
+	}
+}
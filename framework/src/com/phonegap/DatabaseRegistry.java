@@ -0,0 +1,166 @@
+/*
+ * PhoneGap is available under *either* the terms of the modified BSD license *or* the
+ * MIT License (2008). See http://opensource.org/licenses/alphabetical for full text.
+ *
+ * Copyright (c) 2005-2010, Nitobi Software Inc.
+ * Copyright (c) 2010, IBM Corporation
+ */
+package com.phonegap;
+
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * This class keeps the databases opened by the Storage plugin, by name, so that
+ * several databases can be used at the same time without closing and opening them.
+ *
+ * A call acquires the database it uses, and releases it when it is done.  A database
+ * that hasn't been used for a while (the idle time), and has no open transaction, is
+ * closed.  It is opened again the next time it is acquired.
+ */
+public class DatabaseRegistry {
+
+	public static final long DEFAULT_IDLE = 60000;		// Msec a database is kept open without being used
+
+	private final HashMap<String, DatabaseHandle> handles = new HashMap<String, DatabaseHandle>();	// guarded by this
+	private long idle = DEFAULT_IDLE;
+	private Timer timer = null;
+	private TimerTask eviction = null;
+
+	/**
+	 * Set how long a database is kept open without being used.
+	 *
+	 * @param idle				Time in msec
+	 */
+	public synchronized void setIdleTime(long idle) {
+		this.idle = idle;
+	}
+
+	/**
+	 * Add a database, if it isn't already added, and open it.
+	 *
+	 * @param name				The name of the database
+	 * @param file				The database file
+	 * @return					The database
+	 */
+	public synchronized DatabaseHandle open(String name, String file) {
+		DatabaseHandle handle = this.handles.get(name);
+		if ((handle != null) && !handle.getFile().equals(file)) {
+			handle.close();
+			handle = null;
+		}
+		if (handle == null) {
+			handle = new DatabaseHandle(name, file);
+			this.handles.put(name, handle);
+		}
+		handle.open();
+		handle.lastUsed = System.currentTimeMillis();
+		this.scheduleEviction();
+		return handle;
+	}
+
+	/**
+	 * Get a database to use, and open it if it was closed.
+	 * It must be released when it is no longer used.
+	 *
+	 * @param name				The name of the database
+	 * @return					The database, or null if it hasn't been added
+	 */
+	public synchronized DatabaseHandle acquire(String name) {
+		DatabaseHandle handle = this.handles.get(name);
+		if (handle == null) {
+			return null;
+		}
+		handle.open();
+		handle.refs++;
+		return handle;
+	}
+
+	/**
+	 * Release a database that was acquired.
+	 *
+	 * @param handle			The database
+	 */
+	public synchronized void release(DatabaseHandle handle) {
+		handle.refs--;
+		handle.lastUsed = System.currentTimeMillis();
+		this.scheduleEviction();
+	}
+
+	/**
+	 * Get the number of databases that are open.
+	 *
+	 * @return int
+	 */
+	public synchronized int getOpenCount() {
+		int n = 0;
+		for (DatabaseHandle handle : this.handles.values()) {
+			if (handle.isOpen()) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Close all databases.
+	 */
+	public synchronized void closeAll() {
+		for (DatabaseHandle handle : this.handles.values()) {
+			handle.close();
+		}
+		this.handles.clear();
+		if (this.timer != null) {
+			this.timer.cancel();
+			this.timer = null;
+			this.eviction = null;
+		}
+	}
+
+	//--------------------------------------------------------------------------
+	// LOCAL METHODS
+	//--------------------------------------------------------------------------
+
+	/**
+	 * Close databases that are idle.
+	 */
+	private synchronized void evict() {
+		this.eviction = null;
+		long now = System.currentTimeMillis();
+		boolean open = false;
+		for (DatabaseHandle handle : this.handles.values()) {
+			if (!handle.isOpen()) {
+				continue;
+			}
+			if ((handle.refs == 0) && (handle.transaction == null) && (now - handle.lastUsed >= this.idle)) {
+				handle.close();
+			}
+			else {
+				open = true;
+			}
+		}
+		if (open) {
+			this.scheduleEviction();
+		}
+	}
+
+	/**
+	 * Check for idle databases after the idle time, if a check isn't already scheduled.
+	 * Must be called holding this.
+	 */
+	private void scheduleEviction() {
+		if (this.eviction != null) {
+			return;
+		}
+		this.eviction = new TimerTask() {
+			public void run() {
+				evict();
+			}
+		};
+		if (this.timer == null) {
+			this.timer = new Timer("DatabaseRegistry", true);
+		}
+		this.timer.schedule(this.eviction, this.idle);
+	}
+}
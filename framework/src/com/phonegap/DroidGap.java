@@ -9,10 +9,8 @@ package com.phonegap;
 
 import java.util.HashMap;
 import java.util.Map.Entry;
-import java.util.ArrayList;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import java.util.Iterator;
+import java.io.File;
 import java.io.IOException;
 
 import org.json.JSONArray;
@@ -29,6 +27,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Configuration;
 import android.content.res.XmlResourceParser;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Rect;
 import android.media.AudioManager;
@@ -59,6 +58,7 @@ import com.phonegap.api.LOG;
 import com.phonegap.api.PhonegapActivity;
 import com.phonegap.api.IPlugin;
 import com.phonegap.api.PluginManager;
+import com.phonegap.api.PluginResult;
 import 	org.xmlpull.v1.XmlPullParserException;
 
 /**
@@ -126,6 +126,29 @@ import 	org.xmlpull.v1.XmlPullParserException;
  * 
  *      // Enable app to keep running in background. (Boolean - default=true)
  *      super.setBooleanProperty("keepRunning", false);
+ *
+ *      // Maximum number of queued callback statements sent to JavaScript in one 
+ *      // XHR or polling response.  (Integer - default=100)
+ *      super.setIntegerProperty("callbackBatchCount", 50);
+ *
+ *      // Maximum number of characters sent to JavaScript in one XHR or polling
+ *      // response.  (Integer - default=524288)
+ *      super.setIntegerProperty("callbackBatchSize", 65536);
+ *
+ *      // Maximum number of callback statements waiting to be sent to JavaScript.
+ *      // (Integer - default=0 or unbounded)
+ *      super.setIntegerProperty("callbackQueueCapacity", 1000);
+ *
+ *      // What to do when a callback statement is sent while the queue is full: 
+ *      // "block", "drop-oldest" or "coalesce" (by callback id).  "block" must not be used
+ *      // if statements are sent from the UI thread.  (String - default="block")
+ *      super.setStringProperty("callbackQueueOverflow", "coalesce");
+ *
+ *      // Shortest and longest delay in msec between polls when XHR can't be used.  The 
+ *      // delay grows from the shortest to the longest while no callbacks are sent.
+ *      // (Integer - default=50 and 2000)
+ *      super.setIntegerProperty("callbackPollMinDelay", 50);
+ *      super.setIntegerProperty("callbackPollMaxDelay", 2000);
  *      
  * Phonegap.xml configuration:
  *      PhoneGap uses a configuration file at res/xml/phonegap.xml to specify the following settings.
@@ -140,8 +163,12 @@ import 	org.xmlpull.v1.XmlPullParserException;
  *      Before using a new plugin, a new element must be added to the file.
  *          name attribute is the service name passed to PhoneGap.exec() in JavaScript
  *          value attribute is the Java class name to call.
+ *          onload attribute, if true, creates the plugin in the background at startup.
+ *          threads and queue attributes limit the number of async calls running and waiting.
+ *      The executor element sets the number of threads and queue size for all async calls.
  *      
  *      <plugins>
+ *          <executor threads="4" queue="500"/>
  *          <plugin name="App" value="com.phonegap.App"/>
  *          ...
  *      </plugins>
@@ -152,8 +179,7 @@ public class DroidGap extends PhonegapActivity {
     // The webview for our app
     protected WebView appView;
     protected WebViewClient webViewClient;
-    private ArrayList<Pattern> whiteList = new ArrayList<Pattern>();
-    private HashMap<String, Boolean> whiteListCache = new HashMap<String,Boolean>();
+    private WhiteList whiteList = new WhiteList();
 
     protected LinearLayout root;
     public boolean bound = false;
@@ -173,6 +199,11 @@ public class DroidGap extends PhonegapActivity {
     // ie http://server/path/
     private String baseUrl = null;
 
+    // Secret given to the JavaScript of the current page once its URL has been checked.
+    // Prompts prefixed with it are accepted without checking the URL again.
+    private volatile String bridgeSecret = null;
+    private static final int BRIDGE_SECRET_LENGTH = 32;
+
     // Plugin to call when activity result is received
     protected IPlugin activityResultCallback = null;
     protected boolean activityResultKeepRunning;
@@ -346,6 +377,25 @@ public class DroidGap extends PhonegapActivity {
         
         // If keepRunning
         this.keepRunning = this.getBooleanProperty("keepRunning", true);
+
+        // If callbackBatchCount or callbackBatchSize
+        this.callbackServer.setBatchLimits(this.getIntegerProperty("callbackBatchCount", 100),
+                this.getIntegerProperty("callbackBatchSize", 512 * 1024));
+
+        // If callbackQueueCapacity or callbackQueueOverflow
+        String overflow = this.getStringProperty("callbackQueueOverflow", "block");
+        CallbackQueue.Overflow policy = CallbackQueue.Overflow.BLOCK;
+        if (overflow.equalsIgnoreCase("drop-oldest")) {
+            policy = CallbackQueue.Overflow.DROP_OLDEST;
+        }
+        else if (overflow.equalsIgnoreCase("coalesce")) {
+            policy = CallbackQueue.Overflow.COALESCE;
+        }
+        this.callbackServer.setQueueLimits(this.getIntegerProperty("callbackQueueCapacity", 0), policy);
+
+        // If callbackPollMinDelay or callbackPollMaxDelay
+        this.callbackServer.setPollDelays(this.getIntegerProperty("callbackPollMinDelay", 50),
+                this.getIntegerProperty("callbackPollMaxDelay", 2000));
     }
     
     /**
@@ -785,6 +835,78 @@ public class DroidGap extends PhonegapActivity {
         this.callbackServer.sendJavascript(statement);
     }
 
+    /**
+     * Send JavaScript statement for a callback back to JavaScript.
+     * 
+     * @param statement
+     * @param callbackId    The callback id the statement is for
+     */
+    @Override
+    public void sendJavascript(String statement, String callbackId) {
+        this.callbackServer.sendJavascript(statement, callbackId);
+    }
+
+    /**
+     * Send JavaScript statement for a callback back to JavaScript.
+     * 
+     * @param statement
+     * @param callbackId    The callback id the statement is for
+     * @param coalesce      T=replace the statement for callbackId that hasn't been sent yet, if any
+     */
+    @Override
+    public void sendJavascript(String statement, String callbackId, boolean coalesce) {
+        this.callbackServer.sendJavascript(statement, callbackId, coalesce);
+    }
+
+    /**
+     * Wait until fewer than a number of statements are waiting to be sent to JavaScript.
+     * 
+     * @param size          The number of statements
+     * @param timeout       Maximum msec to wait
+     * @return              F=timed out
+     */
+    @Override
+    public boolean waitForJavascript(int size, long timeout) {
+        return this.callbackServer.waitForSize(size, timeout);
+    }
+
+    /**
+     * Wait until fewer than a number of statements for a callback are waiting to be sent to JavaScript.
+     * 
+     * @param callbackId    The callback id the statements are for
+     * @param size          The number of statements
+     * @param timeout       Maximum msec to wait
+     * @return              F=timed out
+     */
+    @Override
+    public boolean waitForJavascript(String callbackId, int size, long timeout) {
+        return this.callbackServer.waitForSize(callbackId, size, timeout);
+    }
+
+    /**
+     * Send the result of a plugin call back to JavaScript.
+     * The data of a binary result is served by the callback server, so only its URL is sent.
+     * 
+     * @param result
+     * @param callbackId    The callback id the result is for
+     * @param success       T=call success callback, F=call error callback
+     */
+    @Override
+    public void sendPluginResult(PluginResult result, String callbackId, boolean success) {
+        if (result.isBinary() && !this.callbackServer.usePolling()) {
+            try {
+                Object data = result.getBinary();
+                String url = (data instanceof File) 
+                        ? this.callbackServer.addBlob((File)data, result.getMimeType())
+                        : this.callbackServer.addBlob((byte[])data, result.getMimeType());
+                result.setBinaryUrl(url);
+            } catch (IOException e) {
+                LOG.d(TAG, "Unable to serve binary result: %s", e.getMessage());
+            }
+        }
+        super.sendPluginResult(result, callbackId, success);
+    }
+
     /**
      * Display a new browser with the specified URL.
      * 
@@ -981,10 +1103,16 @@ public class DroidGap extends PhonegapActivity {
         @Override
         public boolean onJsPrompt(WebView view, String url, String message, String defaultValue, JsPromptResult result) {
             
+            // If prompt is prefixed with the bridge secret, then the page has already been checked
+            boolean reqOk = false;
+            if (isBridgeSecretPrefix(defaultValue)) {
+                reqOk = isBridgeSecret(defaultValue, this.ctx.bridgeSecret);
+                defaultValue = defaultValue.substring(BRIDGE_SECRET_LENGTH);
+            }
+
             // Security check to make sure any requests are coming from the page initially
             // loaded in webview and not another loaded in an iframe.
-            boolean reqOk = false;
-            if (url.indexOf(this.ctx.baseUrl) == 0 || isUrlWhiteListed(url)) {
+            if (!reqOk && (url.indexOf(this.ctx.baseUrl) == 0 || isUrlWhiteListed(url))) {
                 reqOk = true;
             }
             
@@ -1005,9 +1133,35 @@ public class DroidGap extends PhonegapActivity {
                 }
             }
             
+            // Calling PluginManager.exec() for each command queued by PhoneGap.batchExec()
+            // prompt(this.stringify([[service, action, callbackId, args], ...]), "gap_batch:");
+            // Returns an array with the result of each command (null if it's async).
+            else if (reqOk && defaultValue != null && defaultValue.equals("gap_batch:")) {
+                StringBuilder r = new StringBuilder("[");
+                try {
+                    JSONArray commands = new JSONArray(message);
+                    for (int i = 0; i < commands.length(); i++) {
+                        String s = null;
+                        JSONArray command = commands.optJSONArray(i);
+                        if (command != null) {
+                            JSONArray args = command.optJSONArray(3);
+                            s = pluginManager.exec(command.getString(0), command.getString(1), command.getString(2),
+                                    (args != null) ? args : new JSONArray(), true);
+                        }
+                        if (i > 0) {
+                            r.append(',');
+                        }
+                        r.append(((s == null) || (s.length() == 0)) ? "null" : s);
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+                result.confirm(r.append(']').toString());
+            }
+
             // Polling for JavaScript messages 
             else if (reqOk && defaultValue != null && defaultValue.equals("gap_poll:")) {
-                String r = callbackServer.getJavascript();
+                String r = callbackServer.getJavascriptPoll();
                 result.confirm(r);
             }
             
@@ -1029,6 +1183,16 @@ public class DroidGap extends PhonegapActivity {
                 result.confirm(r);
             }
             
+            // Get the bridge secret for this page
+            else if (reqOk && defaultValue != null && defaultValue.equals("gap_secret:")) {
+                String secret = this.ctx.bridgeSecret;
+                if (secret == null) {
+                    secret = java.util.UUID.randomUUID().toString().replace("-", "");
+                    this.ctx.bridgeSecret = secret;
+                }
+                result.confirm(secret);
+            }
+            
             // PhoneGap JS has initialized, so show webview
             // (This solves white flash seen when rendering HTML)
             else if (reqOk && defaultValue != null && defaultValue.equals("gap_init:")) {
@@ -1245,6 +1409,21 @@ public class DroidGap extends PhonegapActivity {
             return true;
         }
         
+        /**
+         * Notify the host application that a page has started loading.
+         * 
+         * @param view          The webview initiating the callback.
+         * @param url           The url of the page.
+         * @param favicon       The favicon for this page.
+         */
+        @Override
+        public void onPageStarted(WebView view, String url, Bitmap favicon) {
+            super.onPageStarted(view, url, favicon);
+
+            // New page must get its own bridge secret
+            this.ctx.bridgeSecret = null;
+        }
+        
         /**
          * Notify the host application that a page has finished loading.
          * 
@@ -1667,39 +1846,59 @@ public class DroidGap extends PhonegapActivity {
     public void addWhiteListEntry(String origin, boolean subdomains) {
         if (subdomains) {
             LOG.d(TAG, "Origin to allow with subdomains: %s", origin);
-            whiteList.add(Pattern.compile(origin.replaceFirst("https{0,1}://", "^https{0,1}://.*")));
         } else {
             LOG.d(TAG, "Origin to allow: %s", origin);
-            whiteList.add(Pattern.compile(origin.replaceFirst("https{0,1}://", "^https{0,1}://")));
-        }    
+        }
+        this.whiteList.addEntry(origin, subdomains);
     }
 
     /**
-     * Determine if URL is in approved list of URLs to load.
+     * Determine if a prompt default value starts with a bridge secret.
      * 
-     * @param url
+     * @param defaultValue
      * @return
      */
-    private boolean isUrlWhiteListed(String url) {
-
-        // Check to see if we have matched url previously
-        if (whiteListCache.get(url) != null) {
-            return true;
+    private static boolean isBridgeSecretPrefix(String defaultValue) {
+        if ((defaultValue == null) || (defaultValue.length() <= BRIDGE_SECRET_LENGTH) 
+                || !defaultValue.startsWith("gap", BRIDGE_SECRET_LENGTH)) {
+            return false;
         }
-
-        // Look for match in white list
-        Iterator<Pattern> pit = whiteList.iterator();
-        while (pit.hasNext()) {
-            Pattern p = pit.next();
-            Matcher m = p.matcher(url);
-
-            // If match found, then cache it to speed up subsequent comparisons
-            if (m.find()) {
-                whiteListCache.put(url, true);
-                return true;
+        for (int i = 0; i < BRIDGE_SECRET_LENGTH; i++) {
+            char c = defaultValue.charAt(i);
+            if (!(((c >= '0') && (c <= '9')) || ((c >= 'a') && (c <= 'f')))) {
+                return false;
             }
         }
-        return false;
+        return true;
+    }
+
+    /**
+     * Compare the start of a prompt default value with the bridge secret.
+     * All characters are compared, so that the time taken doesn't reveal the secret.
+     * 
+     * @param defaultValue
+     * @param secret
+     * @return
+     */
+    private static boolean isBridgeSecret(String defaultValue, String secret) {
+        if (secret == null) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < BRIDGE_SECRET_LENGTH; i++) {
+            diff |= defaultValue.charAt(i) ^ secret.charAt(i);
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Determine if URL is in approved list of URLs to load.
+     * 
+     * @param url
+     * @return
+     */
+    private boolean isUrlWhiteListed(String url) {
+        return this.whiteList.isWhiteListed(url);
     }
 
 }
\ No newline at end of file
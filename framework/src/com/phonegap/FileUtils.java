@@ -873,6 +873,21 @@ public class FileUtils extends Plugin {
 		return false;
 	}
 
+	/**
+	 * Calls that read or change the contents of the same file are run in order.
+	 * 
+	 * @param action	The action to execute
+	 * @param args		JSONArry of arguments for the plugin.
+	 * @return			The file path, or null
+	 */
+	public String getExecutionLane(String action, JSONArray args) {
+		if (action.equals("write") || action.equals("truncate") 
+				|| action.equals("readAsText") || action.equals("readAsDataURL")) {
+			return args.optString(0, null);
+		}
+		return null;
+	}
+
     //--------------------------------------------------------------------------
     // LOCAL METHODS
     //--------------------------------------------------------------------------
@@ -16,10 +16,17 @@ import org.json.JSONException;
 import com.phonegap.api.Plugin;
 import com.phonegap.api.PluginResult;
 
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationManager;
+
 /*
  * This class is the interface to the Geolocation.  It's bound to the geo object.
  * 
  * This class only starts and stops various GeoListeners, which consist of a GPS and a Network Listener
+ * 
+ * The fixes received by all listeners are kept in a LocationCache.  getCurrentLocation is answered
+ * from the cache when it has a fix within maximumAge, and only starts the providers if it doesn't.
  */
 
 public class GeoBroker extends Plugin {
@@ -27,12 +34,15 @@ public class GeoBroker extends Plugin {
     // List of gGeolocation listeners
     private HashMap<String, GeoListener> geoListeners;
 	private GeoListener global;
+	private LocationCache cache;
+	int maximumAge;					// Maximum age of fix for pending getCurrentLocation
 	
 	/**
 	 * Constructor.
 	 */
 	public GeoBroker() {
 		this.geoListeners = new HashMap<String, GeoListener>();
+		this.cache = new LocationCache();
 	}
 
 	/**
@@ -49,7 +59,8 @@ public class GeoBroker extends Plugin {
 		
 		try {
 			if (action.equals("getCurrentLocation")) {
-				this.getCurrentLocation(args.getBoolean(0), args.getInt(1), args.getInt(2));
+				// maximumAge of Infinity is sent as null
+				this.getCurrentLocation(args.getBoolean(0), args.getInt(1), args.optInt(2, Integer.MAX_VALUE));
 			}
 			else if (action.equals("start")) {
 				String s = this.start(args.getString(0), args.getBoolean(1), args.getInt(2), args.getInt(3));
@@ -108,6 +119,14 @@ public class GeoBroker extends Plugin {
      */
 	public void getCurrentLocation(boolean enableHighAccuracy, int timeout, int maximumAge) {
 		
+		// If there is a recent enough fix, then send it without starting the providers
+		Location loc = this.getCachedLocation(maximumAge);
+		if (loc != null) {
+			this.sendJavascript("navigator._geo.success('global'," + GeoListener.getParams(loc) + ");");
+			return;
+		}
+		this.maximumAge = maximumAge;
+		
 		// Create a geolocation listener just for getCurrentLocation and call it "global"
 		if (this.global == null) {
 			this.global = new GeoListener(this, "global", maximumAge);
@@ -117,6 +136,37 @@ public class GeoBroker extends Plugin {
 		}
 	}
 	
+	/**
+	 * Get the best fix that is no older than maximumAge from the cache or the last known
+	 * fixes of the providers.
+	 * 
+	 * @param maximumAge		Maximum age of fix in msec
+	 * @return					The fix, or null if there is none
+	 */
+	private Location getCachedLocation(long maximumAge) {
+		Location loc = this.cache.getBest(maximumAge);
+		if (loc == null) {
+			LocationManager locMan = (LocationManager) this.ctx.getSystemService(Context.LOCATION_SERVICE);
+			if (locMan.getProvider(LocationManager.GPS_PROVIDER) != null) {
+				this.cache.add(locMan.getLastKnownLocation(LocationManager.GPS_PROVIDER));
+			}
+			if (locMan.getProvider(LocationManager.NETWORK_PROVIDER) != null) {
+				this.cache.add(locMan.getLastKnownLocation(LocationManager.NETWORK_PROVIDER));
+			}
+			loc = this.cache.getBest(maximumAge);
+		}
+		return loc;
+	}
+	
+	/**
+	 * Add a fix received by a listener to the cache.
+	 * 
+	 * @param loc
+	 */
+	void addLocation(Location loc) {
+		this.cache.add(loc);
+	}
+	
 	/**
 	 * Start geolocation listener and add to listener list.
 	 * 
@@ -68,15 +68,38 @@ public class GeoListener {
 	 * @param loc
 	 */
 	void success(Location loc) {
-		
-		String params = loc.getLatitude() + "," + loc.getLongitude() + ", " + loc.getAltitude() + 
-				"," + loc.getAccuracy() + "," + loc.getBearing() +
-		 		"," + loc.getSpeed() + "," + loc.getTime();
+		this.broker.addLocation(loc);
 		
 		if (id == "global") {
 			this.stop();
 		}
-		this.broker.sendJavascript("navigator._geo.success('" + id + "'," +  params + ");");
+		this.broker.sendJavascript("navigator._geo.success('" + id + "'," +  getParams(loc) + ");");
+	}
+	
+	/**
+	 * Last known location of a provider that is starting.  Send it back to JavaScript,
+	 * unless it is too old to answer getCurrentLocation, in which case wait for a new one.
+	 * 
+	 * @param loc
+	 */
+	void lastKnown(Location loc) {
+		if ((id == "global") && (System.currentTimeMillis() - loc.getTime() > this.broker.maximumAge)) {
+			this.broker.addLocation(loc);
+			return;
+		}
+		this.success(loc);
+	}
+	
+	/**
+	 * Get the parameters of navigator._geo.success() for a location.
+	 * 
+	 * @param loc
+	 * @return
+	 */
+	static String getParams(Location loc) {
+		return loc.getLatitude() + "," + loc.getLongitude() + ", " + loc.getAltitude() + 
+				"," + loc.getAccuracy() + "," + loc.getBearing() +
+		 		"," + loc.getSpeed() + "," + loc.getTime();
 	}
 	
 	/**
@@ -133,7 +133,7 @@ public class GpsListener implements LocationListener {
 
 			// If GPS provider has data, then send now
 			if (this.hasData) {
-				this.owner.success(this.cLoc);
+				this.owner.lastKnown(this.cLoc);
 			}
 		}
 	}
@@ -0,0 +1,75 @@
+/*
+ * PhoneGap is available under *either* the terms of the modified BSD license *or* the
+ * MIT License (2008). See http://opensource.org/licenses/alphabetical for full text.
+ *
+ * Copyright (c) 2005-2010, Nitobi Software Inc.
+ * Copyright (c) 2010, IBM Corporation
+ */
+package com.phonegap;
+
+import java.util.HashMap;
+
+import android.location.Location;
+
+/**
+ * This class keeps the most recent location fix of each provider, so that a request for
+ * the current location can be answered without starting a provider when a recent enough
+ * fix exists.
+ *
+ * Fixes are ranked by their accuracy, made worse by their age, since the device may have
+ * moved since the fix was taken.
+ */
+public class LocationCache {
+
+	private static final float SPEED = 1.5f;				// Meters per second the device is assumed to move
+	private static final float NO_ACCURACY = 10000;		// Accuracy in meters of a fix that has none
+
+	private HashMap<String, Location> fixes = new HashMap<String, Location>();
+
+	/**
+	 * Add a fix.  It replaces an older fix from the same provider.
+	 *
+	 * @param loc
+	 */
+	public synchronized void add(Location loc) {
+		if (loc == null) {
+			return;
+		}
+		String provider = (loc.getProvider() != null) ? loc.getProvider() : "";
+		Location old = this.fixes.get(provider);
+		if ((old == null) || (loc.getTime() >= old.getTime())) {
+			this.fixes.put(provider, loc);
+		}
+	}
+
+	/**
+	 * Get the best fix that is no older than maximumAge.
+	 *
+	 * @param maximumAge		Maximum age of fix in msec
+	 * @return					The fix, or null if there is none
+	 */
+	public synchronized Location getBest(long maximumAge) {
+		long now = System.currentTimeMillis();
+		Location best = null;
+		float bestScore = 0;
+		for (Location loc : this.fixes.values()) {
+			long age = Math.max(now - loc.getTime(), 0);
+			if (age > maximumAge) {
+				continue;
+			}
+			float score = (loc.hasAccuracy() ? loc.getAccuracy() : NO_ACCURACY) + SPEED * age / 1000;
+			if ((best == null) || (score < bestScore)) {
+				best = loc;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Remove all fixes.
+	 */
+	public synchronized void clear() {
+		this.fixes.clear();
+	}
+}
@@ -124,7 +124,7 @@ public class NetworkListener implements LocationListener {
 			
 			// If Network provider has data but GPS provider doesn't, then send ours
 			if (this.hasData && !this.owner.mGps.hasLocation()) {
-				this.owner.success(this.cLoc);
+				this.owner.lastKnown(this.cLoc);
 			}
 		}
 	}
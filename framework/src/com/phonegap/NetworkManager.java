@@ -187,6 +187,7 @@ public class NetworkManager extends Plugin {
     private void sendUpdate(String type) {
         PluginResult result = new PluginResult(PluginResult.Status.OK, type);
         result.setKeepCallback(true);
+        result.setCoalesce(true);
         this.success(result, this.connectionCallbackId);
     }
     
@@ -0,0 +1,140 @@
+/*
+ * PhoneGap is available under *either* the terms of the modified BSD license *or* the
+ * MIT License (2008). See http://opensource.org/licenses/alphabetical for full text.
+ *
+ * Copyright (c) 2005-2010, Nitobi Software Inc.
+ * Copyright (c) 2010, IBM Corporation
+ */
+package com.phonegap;
+
+import java.util.LinkedHashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.phonegap.api.Plugin;
+import com.phonegap.api.PluginResult;
+
+/**
+ * This class holds the callbacks of plugin calls that are waiting for a value that isn't
+ * available yet, such as the first sample of a sensor that is starting.
+ *
+ * The plugin returns a NO_RESULT that keeps the callback, and adds the callback here.
+ * When the value arrives, complete() sends it to all waiting callbacks.  If it doesn't
+ * arrive in time, a callback gets its timeout result instead.  Each callback has its own
+ * timeout, counted from when it was added.  No thread waits meanwhile.
+ */
+public class PendingCallbacks {
+
+    private static Timer timer = null;              // Shared by all instances
+
+    private final Plugin plugin;
+    private final LinkedHashMap<String, TimerTask> callbacks = new LinkedHashMap<String, TimerTask>();   // Timeout of each callback (guarded by this)
+    private volatile boolean waiting = false;
+
+    /**
+     * Constructor.
+     *
+     * @param plugin            The plugin that results are sent by
+     */
+    public PendingCallbacks(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Add a callback to wait for the value.
+     *
+     * @param callbackId        The callback id
+     * @param timeout           Msec to wait before the timeout result is sent
+     * @param timeoutResult     The result sent if the value doesn't arrive in time
+     * @return                  A NO_RESULT that keeps the callback, to return from execute()
+     */
+    public PluginResult add(final String callbackId, long timeout, final PluginResult timeoutResult) {
+        TimerTask task = new TimerTask() {
+            public void run() {
+                synchronized (PendingCallbacks.this) {
+                    if (PendingCallbacks.this.callbacks.get(callbackId) != this) {
+                        return;
+                    }
+                    PendingCallbacks.this.callbacks.remove(callbackId);
+                    PendingCallbacks.this.waiting = !PendingCallbacks.this.callbacks.isEmpty();
+                }
+                send(new String[] { callbackId }, timeoutResult, false);
+            }
+        };
+        synchronized (this) {
+            TimerTask old = this.callbacks.put(callbackId, task);
+            if (old != null) {
+                old.cancel();
+            }
+            this.waiting = true;
+            getTimer().schedule(task, timeout);
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.NO_RESULT);
+        result.setKeepCallback(true);
+        return result;
+    }
+
+    /**
+     * Determine if any callback is waiting.  This doesn't take a lock, so it can be
+     * checked for every sensor sample.
+     *
+     * @return boolean
+     */
+    public boolean isWaiting() {
+        return this.waiting;
+    }
+
+    /**
+     * Send a result to all waiting callbacks.
+     *
+     * @param result
+     * @param success           T=call success callback, F=call error callback
+     */
+    public void complete(PluginResult result, boolean success) {
+        String[] ids;
+        synchronized (this) {
+            ids = this.take();
+        }
+        this.send(ids, result, success);
+    }
+
+    /**
+     * Remove all waiting callbacks.  Must be called holding this.
+     *
+     * @return                  The callback ids
+     */
+    private String[] take() {
+        for (TimerTask task : this.callbacks.values()) {
+            task.cancel();
+        }
+        String[] ids = this.callbacks.keySet().toArray(new String[this.callbacks.size()]);
+        this.callbacks.clear();
+        this.waiting = false;
+        return ids;
+    }
+
+    /**
+     * Send a result to callbacks.
+     *
+     * @param ids
+     * @param result
+     * @param success
+     */
+    private void send(String[] ids, PluginResult result, boolean success) {
+        for (String id : ids) {
+            if (success) {
+                this.plugin.success(result, id);
+            }
+            else {
+                this.plugin.error(result, id);
+            }
+        }
+    }
+
+    private static synchronized Timer getTimer() {
+        if (timer == null) {
+            timer = new Timer("PendingCallbacks", true);
+        }
+        return timer;
+    }
+}
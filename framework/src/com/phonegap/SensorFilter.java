@@ -0,0 +1,275 @@
+/*
+ * PhoneGap is available under *either* the terms of the modified BSD license *or* the
+ * MIT License (2008). See http://opensource.org/licenses/alphabetical for full text.
+ *
+ * Copyright (c) 2005-2010, Nitobi Software Inc.
+ * Copyright (c) 2010, IBM Corporation
+ */
+package com.phonegap;
+
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+/**
+ * This class filters sensor samples before they are sent to JavaScript.
+ *
+ * Each sample is run through these stages, in order.  A stage that isn't set is skipped.
+ *      lowPass         Exponential smoothing: y += alpha * (x - y)
+ *      highPass        Removes slow changes (such as gravity): y = alpha * (y + x - previous x)
+ *      average         Moving average over the last n samples
+ *      decimate        Only every nth sample is passed on
+ *      deadband        A sample is only passed on if a value changed by more than the threshold
+ *                      since the last sample that was delivered
+ *
+ * The deadband compares a sample with the last sample that was delivered to JavaScript.
+ * A caller that may still drop a sample that passed the filter (for example, to keep to a
+ * sample rate) calls delivered() with the samples it sends.
+ *
+ * Values that are angles (such as compass heading) are unwrapped before filtering, so
+ * that 359 to 1 is a change of 2 degrees, and wrapped again afterwards.
+ *
+ * All state is allocated when the filter is created, so filtering a sample doesn't allocate.
+ * A filter is used by one sensor listener thread.
+ */
+public class SensorFilter {
+
+    private final int dimensions;       // Number of values in a sample
+    private final float period;         // Range of values that wrap around, such as 360 (0 = don't wrap)
+
+    private float lowPass = 0;          // Alpha of low pass filter (0 = off)
+    private float highPass = 0;         // Alpha of high pass filter (0 = off)
+    private int decimation = 1;         // Pass every nth sample
+    private float deadband = 0;         // Minimum change to pass a sample (0 = off)
+
+    private final float[] raw;          // Previous input, to unwrap angles
+    private final float[] unwrapped;
+    private final float[] low;
+    private final float[] high;
+    private final float[] highInput;    // Previous input of high pass filter
+    private float[] history = null;     // Ring buffer of moving average, window * dimensions
+    private final float[] sum;
+    private int window = 0;
+    private int historyIndex = 0;
+    private int historyCount = 0;
+    private final float[] last;         // Last sample delivered, for deadband
+    private int skipped = 0;
+    private boolean started = false;
+    private boolean delivered = false;
+
+    /**
+     * Constructor.
+     *
+     * @param dimensions        Number of values in a sample
+     * @param period            Range of values that wrap around, such as 360 for degrees (0 = don't wrap)
+     */
+    public SensorFilter(int dimensions, float period) {
+        this.dimensions = dimensions;
+        this.period = period;
+        this.raw = new float[dimensions];
+        this.unwrapped = new float[dimensions];
+        this.low = new float[dimensions];
+        this.high = new float[dimensions];
+        this.highInput = new float[dimensions];
+        this.sum = new float[dimensions];
+        this.last = new float[dimensions];
+    }
+
+    /**
+     * Create a filter from the options passed from JavaScript:
+     *      {lowPass:0.2, highPass:0.8, average:5, decimate:2, deadband:0.1}
+     *
+     * @param options           The options (can be null)
+     * @param dimensions        Number of values in a sample
+     * @param period            Range of values that wrap around (0 = don't wrap)
+     * @return                  The filter, or null if no stage is set
+     */
+    public static SensorFilter create(JSONObject options, int dimensions, float period) {
+        if ((options == null) || (options.length() == 0)) {
+            return null;
+        }
+        SensorFilter filter = new SensorFilter(dimensions, period);
+        filter.setLowPass((float)options.optDouble("lowPass", 0));
+        filter.setHighPass((float)options.optDouble("highPass", 0));
+        filter.setAverage(options.optInt("average", 0));
+        filter.setDecimation(options.optInt("decimate", 1));
+        filter.setDeadband((float)options.optDouble("deadband", 0));
+        return filter;
+    }
+
+    /**
+     * Set the low pass filter.
+     *
+     * @param alpha             Weight of a new sample, between 0 and 1 (0 = off)
+     */
+    public void setLowPass(float alpha) {
+        this.lowPass = ((alpha > 0) && (alpha < 1)) ? alpha : 0;
+    }
+
+    /**
+     * Set the high pass filter.
+     *
+     * @param alpha             Weight of the previous output, between 0 and 1 (0 = off)
+     */
+    public void setHighPass(float alpha) {
+        this.highPass = ((alpha > 0) && (alpha < 1)) ? alpha : 0;
+    }
+
+    /**
+     * Set the moving average.
+     *
+     * @param window            Number of samples averaged (0 or 1 = off)
+     */
+    public void setAverage(int window) {
+        if (window > 1) {
+            this.history = new float[window * this.dimensions];
+            this.window = window;
+        }
+        else {
+            this.history = null;
+            this.window = 0;
+        }
+        this.historyIndex = 0;
+        this.historyCount = 0;
+        Arrays.fill(this.sum, 0);
+    }
+
+    /**
+     * Set the decimation.
+     *
+     * @param n                 Pass every nth sample (1 = all)
+     */
+    public void setDecimation(int n) {
+        this.decimation = (n > 1) ? n : 1;
+    }
+
+    /**
+     * Set the deadband.
+     *
+     * @param threshold         Change needed to pass a sample (0 = off)
+     */
+    public void setDeadband(float threshold) {
+        this.deadband = (threshold > 0) ? threshold : 0;
+    }
+
+    /**
+     * Forget all samples seen so far.
+     */
+    public void reset() {
+        this.started = false;
+        this.delivered = false;
+        this.skipped = 0;
+        this.historyIndex = 0;
+        this.historyCount = 0;
+        Arrays.fill(this.sum, 0);
+    }
+
+    /**
+     * Filter a sample.
+     *
+     * @param in                The sample, which isn't changed
+     * @param out               Receives the filtered sample, if it is passed on
+     * @return                  T=sample is passed on, F=sample is dropped
+     */
+    public boolean filter(float[] in, float[] out) {
+        int n = this.dimensions;
+        for (int i = 0; i < n; i++) {
+            float v = in[i];
+
+            // Unwrap angles
+            if (this.period > 0) {
+                if (this.started) {
+                    float d = v - this.raw[i];
+                    if (d > this.period / 2) {
+                        d -= this.period;
+                    }
+                    else if (d < -this.period / 2) {
+                        d += this.period;
+                    }
+                    this.raw[i] = v;
+                    v = this.unwrapped[i] + d;
+                }
+                else {
+                    this.raw[i] = v;
+                }
+                this.unwrapped[i] = v;
+            }
+
+            // Low pass
+            if (this.lowPass > 0) {
+                this.low[i] = this.started ? this.low[i] + this.lowPass * (v - this.low[i]) : v;
+                v = this.low[i];
+            }
+
+            // High pass
+            if (this.highPass > 0) {
+                this.high[i] = this.started ? this.highPass * (this.high[i] + v - this.highInput[i]) : 0;
+                this.highInput[i] = v;
+                v = this.high[i];
+            }
+
+            // Moving average
+            if (this.history != null) {
+                int h = this.historyIndex * n + i;
+                if (this.historyCount == this.window) {
+                    this.sum[i] -= this.history[h];
+                }
+                this.history[h] = v;
+                this.sum[i] += v;
+                v = this.sum[i] / Math.min(this.historyCount + 1, this.window);
+            }
+
+            // Wrap angles
+            if (this.period > 0) {
+                v = v % this.period;
+                if (v < 0) {
+                    v += this.period;
+                }
+            }
+            out[i] = v;
+        }
+        this.started = true;
+        if (this.history != null) {
+            this.historyIndex = (this.historyIndex + 1) % this.window;
+            if (this.historyCount < this.window) {
+                this.historyCount++;
+            }
+        }
+
+        // Decimation
+        if (++this.skipped < this.decimation) {
+            return false;
+        }
+        this.skipped = 0;
+
+        // Deadband
+        if (this.delivered && (this.deadband > 0)) {
+            boolean changed = false;
+            for (int i = 0; i < n; i++) {
+                float d = Math.abs(out[i] - this.last[i]);
+                if ((this.period > 0) && (d > this.period / 2)) {
+                    d = this.period - d;
+                }
+                if (d > this.deadband) {
+                    changed = true;
+                    break;
+                }
+            }
+            if (!changed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record a filtered sample that was delivered.  The deadband of later samples is
+     * measured from it.
+     *
+     * @param out               The filtered sample
+     */
+    public void delivered(float[] out) {
+        System.arraycopy(out, 0, this.last, 0, this.dimensions);
+        this.delivered = true;
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * PhoneGap is available under *either* the terms of the modified BSD license *or* the
+ * MIT License (2008). See http://opensource.org/licenses/alphabetical for full text.
+ *
+ * Copyright (c) 2005-2010, Nitobi Software Inc.
+ * Copyright (c) 2010, IBM Corporation
+ */
+package com.phonegap;
+
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * This class shares sensors between the plugins that watch them.
+ *
+ * A sensor type is registered with the source once, no matter how many watchers it has,
+ * at the fastest rate any of them asked for.  When its last watcher is removed, the sensor
+ * is left running for a while (the linger time), so a watcher that comes back soon doesn't
+ * have to wait for the sensor to start again.  A watcher that is added while the sensor is
+ * running gets the most recent sample right away.
+ *
+ * Rates are SensorManager delays, where a smaller value is a faster rate.
+ */
+public class SensorHub {
+
+    public static final long DEFAULT_LINGER = 10000;   // Msec a sensor is kept running without watchers
+
+    /**
+     * Where samples come from, such as the SensorManager.
+     */
+    public interface Source {
+
+        /**
+         * Start sending samples of a sensor type to SensorHub.dispatch().
+         *
+         * @param type          The sensor type
+         * @param delay         The rate of samples
+         * @return              T=sensor was registered, F=there is no such sensor
+         */
+        public boolean register(int type, int delay);
+
+        /**
+         * Stop sending samples of a sensor type.
+         *
+         * @param type          The sensor type
+         */
+        public void unregister(int type);
+    }
+
+    /**
+     * Receives the samples of a sensor.
+     */
+    public interface Watcher {
+
+        /**
+         * Called with each sample of a sensor being watched.
+         * The values must not be changed or kept after returning.
+         *
+         * @param type          The sensor type
+         * @param timestamp     Time of sample in msec
+         * @param values        The values of the sample
+         */
+        public void onSample(int type, long timestamp, float[] values);
+    }
+
+    /**
+     * The watchers of a sensor type.
+     */
+    private static final class Registration {
+        Watcher[] watchers = new Watcher[0];    // Replaced, never changed, so it can be read without lock
+        int[] delays = new int[0];
+        int delay = -1;                         // Rate registered with source (-1 = not registered)
+        TimerTask linger = null;                // Task that unregisters sensor when it has no watchers
+        float[] values = null;                  // Most recent sample
+        long timestamp = 0;                     // Time of most recent sample (0 = none since registered)
+        int registrations = 0;                  // Number of times registered with source
+    }
+
+    private final Source source;
+    private final HashMap<Integer, Registration> sensors = new HashMap<Integer, Registration>();    // guarded by this
+    private long linger = DEFAULT_LINGER;
+    private Timer timer = null;
+
+    /**
+     * Constructor.
+     *
+     * @param source            Where samples come from
+     */
+    public SensorHub(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * Set how long a sensor is kept running after its last watcher is removed.
+     *
+     * @param linger            Time in msec (0 = stop at once)
+     */
+    public synchronized void setLinger(long linger) {
+        this.linger = linger;
+    }
+
+    /**
+     * Add a watcher of a sensor type, or change the rate of a watcher.
+     *
+     * @param type              The sensor type
+     * @param watcher           The watcher
+     * @param delay             The rate of samples the watcher needs
+     * @return                  T=watcher was added, F=there is no such sensor
+     */
+    public boolean addWatcher(int type, Watcher watcher, int delay) {
+        long timestamp;
+        float[] values;
+        synchronized (this) {
+            Registration reg = this.sensors.get(type);
+            if (reg == null) {
+                reg = new Registration();
+                this.sensors.put(type, reg);
+            }
+            if (reg.linger != null) {
+                reg.linger.cancel();
+                reg.linger = null;
+            }
+
+            int i = indexOf(reg.watchers, watcher);
+            if (i < 0) {
+                i = reg.watchers.length;
+                Watcher[] watchers = new Watcher[i + 1];
+                int[] delays = new int[i + 1];
+                System.arraycopy(reg.watchers, 0, watchers, 0, i);
+                System.arraycopy(reg.delays, 0, delays, 0, i);
+                watchers[i] = watcher;
+                reg.watchers = watchers;
+                reg.delays = delays;
+            }
+            reg.delays[i] = delay;
+
+            if (!this.update(type, reg)) {
+                this.remove(reg, i);
+                if (reg.watchers.length > 0) {
+                    this.update(type, reg);
+                }
+                return false;
+            }
+
+            // Give new watcher the most recent sample, if sensor is running
+            if (reg.timestamp == 0) {
+                return true;
+            }
+            timestamp = reg.timestamp;
+            values = reg.values.clone();
+        }
+        watcher.onSample(type, timestamp, values);
+        return true;
+    }
+
+    /**
+     * Remove a watcher of a sensor type.
+     * If it was the last one, the sensor is unregistered after the linger time.
+     *
+     * @param type              The sensor type
+     * @param watcher           The watcher
+     */
+    public synchronized void removeWatcher(int type, Watcher watcher) {
+        final Registration reg = this.sensors.get(type);
+        if (reg == null) {
+            return;
+        }
+        int i = indexOf(reg.watchers, watcher);
+        if (i < 0) {
+            return;
+        }
+        this.remove(reg, i);
+        if (reg.watchers.length > 0) {
+            this.update(type, reg);
+        }
+        else if (this.linger <= 0) {
+            this.unregister(type, reg);
+        }
+        else if (reg.delay >= 0) {
+            final int t = type;
+            reg.linger = new TimerTask() {
+                public void run() {
+                    synchronized (SensorHub.this) {
+                        if ((reg.linger == this) && (reg.watchers.length == 0)) {
+                            reg.linger = null;
+                            unregister(t, reg);
+                        }
+                    }
+                }
+            };
+            if (this.timer == null) {
+                this.timer = new Timer("SensorHub", true);
+            }
+            this.timer.schedule(reg.linger, this.linger);
+        }
+    }
+
+    /**
+     * Called by the source with each sample of a registered sensor.
+     *
+     * @param type              The sensor type
+     * @param timestamp         Time of sample in msec
+     * @param values            The values of the sample
+     */
+    public void dispatch(int type, long timestamp, float[] values) {
+        Watcher[] watchers;
+        synchronized (this) {
+            Registration reg = this.sensors.get(type);
+            if ((reg == null) || (reg.delay < 0)) {
+                return;
+            }
+            if ((reg.values == null) || (reg.values.length != values.length)) {
+                reg.values = new float[values.length];
+            }
+            System.arraycopy(values, 0, reg.values, 0, values.length);
+            reg.timestamp = timestamp;
+            watchers = reg.watchers;
+        }
+        for (int i = 0; i < watchers.length; i++) {
+            watchers[i].onSample(type, timestamp, values);
+        }
+    }
+
+    /**
+     * Get the number of watchers of a sensor type.
+     *
+     * @param type
+     * @return int
+     */
+    public synchronized int getWatcherCount(int type) {
+        Registration reg = this.sensors.get(type);
+        return (reg != null) ? reg.watchers.length : 0;
+    }
+
+    /**
+     * Get the number of times a sensor type has been registered with the source.
+     *
+     * @param type
+     * @return int
+     */
+    public synchronized int getRegistrationCount(int type) {
+        Registration reg = this.sensors.get(type);
+        return (reg != null) ? reg.registrations : 0;
+    }
+
+    /**
+     * Determine if a sensor type is registered with the source.
+     *
+     * @param type
+     * @return boolean
+     */
+    public synchronized boolean isRegistered(int type) {
+        Registration reg = this.sensors.get(type);
+        return (reg != null) && (reg.delay >= 0);
+    }
+
+    /**
+     * Unregister all sensors and remove all watchers.
+     */
+    public synchronized void shutdown() {
+        for (Integer type : this.sensors.keySet()) {
+            Registration reg = this.sensors.get(type);
+            if (reg.linger != null) {
+                reg.linger.cancel();
+                reg.linger = null;
+            }
+            this.unregister(type, reg);
+        }
+        this.sensors.clear();
+        if (this.timer != null) {
+            this.timer.cancel();
+            this.timer = null;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // LOCAL METHODS
+    //--------------------------------------------------------------------------
+
+    /**
+     * Register sensor at the fastest rate of its watchers, if it isn't already.
+     * Must be called holding this.
+     *
+     * @param type
+     * @param reg
+     * @return                  F=there is no such sensor
+     */
+    private boolean update(int type, Registration reg) {
+        int delay = Integer.MAX_VALUE;
+        for (int i = 0; i < reg.delays.length; i++) {
+            delay = Math.min(delay, reg.delays[i]);
+        }
+        if (delay == reg.delay) {
+            return true;
+        }
+        if (reg.delay >= 0) {
+            this.source.unregister(type);
+        }
+        reg.timestamp = 0;
+        if (!this.source.register(type, delay)) {
+            reg.delay = -1;
+            return false;
+        }
+        reg.delay = delay;
+        reg.registrations++;
+        return true;
+    }
+
+    /**
+     * Unregister sensor.  Must be called holding this.
+     *
+     * @param type
+     * @param reg
+     */
+    private void unregister(int type, Registration reg) {
+        if (reg.delay >= 0) {
+            this.source.unregister(type);
+            reg.delay = -1;
+            reg.timestamp = 0;
+        }
+    }
+
+    /**
+     * Remove a watcher from a registration.  Must be called holding this.
+     *
+     * @param reg
+     * @param i                 Index of watcher
+     */
+    private void remove(Registration reg, int i) {
+        int n = reg.watchers.length - 1;
+        Watcher[] watchers = new Watcher[n];
+        int[] delays = new int[n];
+        System.arraycopy(reg.watchers, 0, watchers, 0, i);
+        System.arraycopy(reg.watchers, i + 1, watchers, i, n - i);
+        System.arraycopy(reg.delays, 0, delays, 0, i);
+        System.arraycopy(reg.delays, i + 1, delays, i, n - i);
+        reg.watchers = watchers;
+        reg.delays = delays;
+    }
+
+    private static int indexOf(Watcher[] watchers, Watcher watcher) {
+        for (int i = 0; i < watchers.length; i++) {
+            if (watchers[i] == watcher) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * PhoneGap is available under *either* the terms of the modified BSD license *or* the
+ * MIT License (2008). See http://opensource.org/licenses/alphabetical for full text.
+ *
+ * Copyright (c) 2005-2010, Nitobi Software Inc.
+ * Copyright (c) 2010, IBM Corporation
+ */
+package com.phonegap;
+
+import java.util.List;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+
+/**
+ * This class feeds the samples of the device's sensors to a SensorHub.
+ */
+public class SensorManagerSource implements SensorHub.Source, SensorEventListener {
+
+    private static SensorHub defaultHub = null;
+
+    private final SensorManager sensorManager;
+    private SensorHub hub;
+
+    /**
+     * Get the hub that is shared by all sensor plugins.
+     *
+     * @param ctx           A context of the application
+     * @return SensorHub
+     */
+    public static synchronized SensorHub getDefaultHub(Context ctx) {
+        if (defaultHub == null) {
+            SensorManagerSource source = new SensorManagerSource(ctx.getApplicationContext());
+            defaultHub = new SensorHub(source);
+            source.hub = defaultHub;
+        }
+        return defaultHub;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param ctx
+     */
+    private SensorManagerSource(Context ctx) {
+        this.sensorManager = (SensorManager) ctx.getSystemService(Context.SENSOR_SERVICE);
+    }
+
+    /**
+     * Register for a sensor type.
+     *
+     * @param type
+     * @param delay
+     * @return              F=there is no such sensor
+     */
+    public boolean register(int type, int delay) {
+        Sensor sensor = this.getSensor(type);
+        return (sensor != null) && this.sensorManager.registerListener(this, sensor, delay);
+    }
+
+    /**
+     * Unregister for a sensor type.
+     *
+     * @param type
+     */
+    public void unregister(int type) {
+        Sensor sensor = this.getSensor(type);
+        if (sensor != null) {
+            this.sensorManager.unregisterListener(this, sensor);
+        }
+    }
+
+    /**
+     * Get the default sensor of a type.
+     *
+     * @param type
+     * @return              The sensor, or null if there is none
+     */
+    private Sensor getSensor(int type) {
+        List<Sensor> list = this.sensorManager.getSensorList(type);
+        return ((list != null) && (list.size() > 0)) ? list.get(0) : null;
+    }
+
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * Sensor listener event.
+     *
+     * @param SensorEvent event
+     */
+    public void onSensorChanged(SensorEvent event) {
+        this.hub.dispatch(event.sensor.getType(), System.currentTimeMillis(), event.values);
+    }
+}
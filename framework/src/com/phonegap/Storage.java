@@ -7,9 +7,13 @@
  */
 package com.phonegap;
 
+import java.lang.reflect.Method;
+
+import org.apache.commons.codec.binary.Base64;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import com.phonegap.api.LOG;
 import com.phonegap.api.Plugin;
 import com.phonegap.api.PluginResult;
 import android.database.Cursor;
@@ -21,15 +25,42 @@ import android.database.sqlite.*;
  */
 public class Storage extends Plugin {
 
+	private static final String LOG_TAG = "Storage";
+
 	// Data Definition Language
 	private static final String ALTER = "alter";
 	private static final String CREATE = "create";
 	private static final String DROP = "drop";
 	private static final String TRUNCATE = "truncate";
+
+	// Data Manipulation Language, run as compiled statements
+	private static final String INSERT = "insert";
+	private static final String REPLACE = "replace";
+	private static final String UPDATE = "update";
+	private static final String DELETE = "delete";
+
+	// Paged results
+	private static final String LANE = "db";			// Execution lane of database calls, followed by database name
+	private static final int MAX_PENDING = 2;			// Pages of a query waiting for JavaScript before the next is held back
+	private static final long PAGE_TIMEOUT = 30000;	// Msec to wait for JavaScript to read a page
+
+	// Cursor.getType() and its field types, which are only available on Android 3.0+
+	private static final int FIELD_TYPE_NULL = 0;
+	private static final int FIELD_TYPE_INTEGER = 1;
+	private static final int FIELD_TYPE_FLOAT = 2;
+	private static final int FIELD_TYPE_BLOB = 4;
+	private static Method getType = null;
+	static {
+		try {
+			getType = Cursor.class.getMethod("getType", int.class);
+		} catch (NoSuchMethodException e) {
+			getType = null;
+		}
+	}
 	
-	SQLiteDatabase myDb = null; // Database object
+	DatabaseRegistry databases = new DatabaseRegistry(); // Open databases
 	String path = null; // Database path
-	String dbName = null; // Database name
+	volatile String dbName = null; // Name of database last opened, used by calls that don't name one
 
 	/**
 	 * Constructor.
@@ -60,26 +91,117 @@ public class Storage extends Plugin {
 			} else if (action.equals("openDatabase")) {
 				this.openDatabase(args.getString(0), args.getString(1),
 						args.getString(2), args.getLong(3));
-			} else if (action.equals("executeSql")) {
-				String[] s = null;
-				if (args.isNull(1)) {
-					s = new String[0];
-				} else {
-					JSONArray a = args.getJSONArray(1);
-					int len = a.length();
-					s = new String[len];
-					for (int i = 0; i < len; i++) {
-						s[i] = a.getString(i);
-					}
+			} else if (getDatabaseArg(action) >= 0) {
+				String name = optString(args, getDatabaseArg(action));
+				DatabaseHandle db = this.databases.acquire((name != null) ? name : this.dbName);
+				if (db == null) {
+					return new PluginResult(PluginResult.Status.ERROR, "Database is not open");
+				}
+				try {
+					return this.execute(db, action, args, callbackId);
+				} finally {
+					this.databases.release(db);
 				}
-				this.executeSql(args.getString(0), s, args.getString(2));
 			}
 			return new PluginResult(status, result);
+		} catch (SQLiteException e) {
+			return new PluginResult(PluginResult.Status.ERROR, e.getMessage());
 		} catch (JSONException e) {
 			return new PluginResult(PluginResult.Status.JSON_EXCEPTION);
 		}
 	}
 
+	/**
+	 * Executes a request that uses a database.
+	 * 
+	 * @param db
+	 *            The database
+	 * @param action
+	 *            The action to execute.
+	 * @param args
+	 *            JSONArry of arguments for the plugin.
+	 * @param callbackId
+	 *            The callback id used when calling back into JavaScript.
+	 * @return A PluginResult object with a status and message.
+	 */
+	private PluginResult execute(DatabaseHandle db, String action, JSONArray args, String callbackId) throws JSONException {
+		PluginResult.Status status = PluginResult.Status.OK;
+		String result = "";
+
+		if (action.equals("executeSql")) {
+			String[] s = getParams(args.optJSONArray(1));
+			int pageSize = args.optInt(3, 0);
+			boolean columns = args.optBoolean(4, false);
+			db.beginTransaction(optString(args, 5));
+			if (pageSize > 0) {
+				this.executeSql(db, args.getString(0), s, pageSize, columns, callbackId);
+				PluginResult r = new PluginResult(PluginResult.Status.NO_RESULT);
+				r.setKeepCallback(true);
+				return r;
+			}
+			this.executeSql(db, args.getString(0), s, args.getString(2), columns);
+		} else if (action.equals("executeBatch")) {
+			return this.executeBatch(db, args.getJSONArray(0), optString(args, 1), callbackId);
+		} else if (action.equals("commitTransaction")) {
+			db.endTransaction(args.getString(0), true);
+		} else if (action.equals("rollbackTransaction")) {
+			db.endTransaction(args.getString(0), false);
+		}
+		return new PluginResult(status, result);
+	}
+
+	/**
+	 * Get the index of the argument that names the database a call uses.
+	 * 
+	 * @param action
+	 *            The action to execute
+	 * @return The index, or -1 if the call doesn't use a database
+	 */
+	private static int getDatabaseArg(String action) {
+		if (action.equals("openDatabase")) {
+			return 0;
+		} else if (action.equals("executeSql")) {
+			return 6;
+		} else if (action.equals("executeBatch")) {
+			return 2;
+		} else if (action.equals("commitTransaction") || action.equals("rollbackTransaction")) {
+			return 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get an optional string argument.
+	 * 
+	 * @param args
+	 *            JSONArry of arguments for the plugin.
+	 * @param i
+	 *            Index of argument
+	 * @return The argument, or null if it is missing or null
+	 */
+	private static String optString(JSONArray args, int i) {
+		return args.isNull(i) ? null : args.optString(i);
+	}
+
+	/**
+	 * Get the parameters of a statement.
+	 * 
+	 * @param a
+	 *            JSONArray of parameters (can be null)
+	 * @return The parameters as strings
+	 */
+	private static String[] getParams(JSONArray a) throws JSONException {
+		if (a == null) {
+			return new String[0];
+		}
+		int len = a.length();
+		String[] s = new String[len];
+		for (int i = 0; i < len; i++) {
+			s[i] = a.getString(i);
+		}
+		return s;
+	}
+
 	/**
 	 * Identifies if action to be executed returns a value and should be run
 	 * synchronously.
@@ -89,7 +211,26 @@ public class Storage extends Plugin {
 	 * @return T=returns value
 	 */
 	public boolean isSynch(String action) {
-		return true;
+		if (action.equals("setStorage")) {
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Calls that open or use the same database are run in order.  Calls that use
+	 * different databases can run at the same time.
+	 * 
+	 * @param action
+	 *            The action to execute
+	 * @param args
+	 *            JSONArry of arguments for the plugin.
+	 * @return The lane
+	 */
+	public String getExecutionLane(String action, JSONArray args) {
+		int i = getDatabaseArg(action);
+		String name = (i >= 0) ? optString(args, i) : null;
+		return (name != null) ? LANE + ":" + name : LANE;
 	}
 
 	/**
@@ -97,10 +238,7 @@ public class Storage extends Plugin {
 	 */
 	@Override
 	public void onDestroy() {
-		if (this.myDb != null) {
-			this.myDb.close();
-			this.myDb = null;
-		}
+		this.databases.closeAll();
 	}
 
 	// --------------------------------------------------------------------------
@@ -123,7 +261,8 @@ public class Storage extends Plugin {
 	}
 
 	/**
-	 * Open database.
+	 * Open database.  A database that is already open is kept open, so that
+	 * several databases can be used at the same time.
 	 * 
 	 * @param db
 	 *            The name of the database
@@ -137,11 +276,6 @@ public class Storage extends Plugin {
 	public void openDatabase(String db, String version, String display_name,
 			long size) {
 
-		// If database is open, then close it
-		if (this.myDb != null) {
-			this.myDb.close();
-		}
-
 		// If no database path, generate from application package
 		if (this.path == null) {
 			Package pack = this.ctx.getClass().getPackage();
@@ -149,8 +283,8 @@ public class Storage extends Plugin {
 			this.setStorage(appPackage);
 		}
 
-		this.dbName = this.path + db + ".db";
-		this.myDb = SQLiteDatabase.openOrCreateDatabase(this.dbName, null);
+		this.databases.open(db, this.path + db + ".db");
+		this.dbName = db;
 	}
 
 	/**
@@ -164,26 +298,209 @@ public class Storage extends Plugin {
 	 *            Transaction id
 	 */
 	public void executeSql(String query, String[] params, String tx_id) {
+		DatabaseHandle db = this.databases.acquire(this.dbName);
+		if (db != null) {
+			try {
+				this.executeSql(db, query, params, tx_id, false);
+			} finally {
+				this.databases.release(db);
+			}
+		}
+	}
+
+	/**
+	 * Execute SQL statement.
+	 * 
+	 * @param db
+	 *            The database
+	 * @param query
+	 *            The SQL query
+	 * @param params
+	 *            Parameters for the query
+	 * @param tx_id
+	 *            Transaction id
+	 * @param columns
+	 *            T=send results in column format, F=send rows as objects
+	 */
+	public void executeSql(DatabaseHandle db, String query, String[] params, String tx_id, boolean columns) {
 		try {
 			if (isDDL(query)) {
-				this.myDb.execSQL(query);
+				db.clearStatements();
+				db.getDatabase().execSQL(query);
 				this.sendJavascript("droiddb.completeQuery('" + tx_id + "', '');");
 			} 
+			else if (isDML(query)) {
+				long[] changed = db.executeUpdate(query, params);
+				this.sendJavascript("droiddb.completeQuery('" + tx_id + "', {\"rows\":[]," + getChanges(changed) + "});");
+			}
 			else {
-				Cursor myCursor = this.myDb.rawQuery(query, params);
-				this.processResults(myCursor, tx_id);
+				Cursor myCursor = db.getDatabase().rawQuery(query, params);
+				if (columns) {
+					this.processColumns(myCursor, tx_id);
+				}
+				else {
+					this.processResults(myCursor, tx_id);
+				}
 				myCursor.close();
 			}
 		} 
 		catch (SQLiteException ex) {
 			ex.printStackTrace();
 			System.out.println("Storage.executeSql(): Error=" +  ex.getMessage());
+			db.transactionFailed = true;
 			
 			// Send error message back to JavaScript
 			this.sendJavascript("droiddb.fail('" + ex.getMessage() + "','" + tx_id + "');");
 		}
 	}
 
+	/**
+	 * Execute a batch of SQL statements in one transaction, and return one result for
+	 * all of them:
+	 *      {results:[{rowsAffected:1, insertId:5}, {rows:[...]}, ...], error:null}
+	 * 
+	 * The batch stops at the first statement that fails, and error is set to
+	 * {index:i, message:"..."}.  If the batch is part of a transaction, the transaction
+	 * is rolled back when it ends.  Otherwise the batch is run in a transaction of its
+	 * own, which is rolled back.
+	 * 
+	 * @param db
+	 *            The database
+	 * @param batch
+	 *            JSONArray of statements {sql:"...", params:[...]}
+	 * @param transaction
+	 *            Transaction id (null = run in a transaction of its own)
+	 * @param callbackId
+	 *            The callback id used when calling back into JavaScript.
+	 * @return A PluginResult object with the results.
+	 */
+	public PluginResult executeBatch(DatabaseHandle db, JSONArray batch, String transaction, String callbackId) throws JSONException {
+		String id = (transaction != null) ? transaction : callbackId;
+		db.beginTransaction(id);
+
+		JSONArray results = new JSONArray();
+		JSONObject error = null;
+		boolean complete = false;
+		try {
+			int len = batch.length();
+			for (int n = 0; n < len; n++) {
+				JSONObject statement = batch.getJSONObject(n);
+				String query = statement.getString("sql");
+				String[] params = getParams(statement.optJSONArray("params"));
+				JSONObject r = new JSONObject();
+				try {
+					if (isDDL(query)) {
+						db.clearStatements();
+						db.getDatabase().execSQL(query);
+					}
+					else if (isDML(query)) {
+						long[] changed = db.executeUpdate(query, params);
+						r.put("rowsAffected", changed[0]);
+						if (changed[1] >= 0) {
+							r.put("insertId", changed[1]);
+						}
+					}
+					else {
+						Cursor myCursor = db.getDatabase().rawQuery(query, params);
+						try {
+							r.put("rows", this.getRows(myCursor));
+						} finally {
+							myCursor.close();
+						}
+					}
+				}
+				catch (SQLiteException ex) {
+					LOG.d(LOG_TAG, "Storage.executeBatch(): Error=" + ex.getMessage());
+					db.transactionFailed = true;
+					error = new JSONObject();
+					error.put("index", n);
+					error.put("message", ex.getMessage());
+					break;
+				}
+				results.put(r);
+			}
+			complete = true;
+		}
+		finally {
+			// A batch that didn't complete fails its transaction, so it is never committed
+			if (!complete) {
+				db.transactionFailed = true;
+			}
+			if (transaction == null) {
+				db.endTransaction(id, true);
+			}
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("results", results);
+		result.put("error", (error != null) ? error : JSONObject.NULL);
+		return new PluginResult(PluginResult.Status.OK, result);
+	}
+
+	/**
+	 * Execute SQL statement and send the rows to JavaScript in pages.
+	 * 
+	 * Each page is sent to the callback as {rows:[...], more:true|false}.  A page is
+	 * held back while JavaScript still has statements waiting to be read, so that only
+	 * a few pages are in memory at a time, however many rows the query returns.
+	 * 
+	 * @param db
+	 *            The database
+	 * @param query
+	 *            The SQL query
+	 * @param params
+	 *            Parameters for the query
+	 * @param pageSize
+	 *            Number of rows in a page
+	 * @param columns
+	 *            T=send results in column format, F=send rows as objects
+	 * @param callbackId
+	 *            The callback id used when calling back into JavaScript.
+	 */
+	public void executeSql(DatabaseHandle db, String query, String[] params, int pageSize, boolean columns, String callbackId) {
+		Cursor myCursor = null;
+		try {
+			if (isDDL(query)) {
+				db.clearStatements();
+				db.getDatabase().execSQL(query);
+				this.sendPage("{\"rows\":[],\"more\":false}", false, callbackId);
+			} 
+			else if (isDML(query)) {
+				long[] changed = db.executeUpdate(query, params);
+				this.sendPage("{\"rows\":[],\"more\":false," + getChanges(changed) + "}", false, callbackId);
+			}
+			else {
+				myCursor = db.getDatabase().rawQuery(query, params);
+				this.processResultPages(myCursor, pageSize, columns, callbackId);
+			}
+		} 
+		catch (SQLiteException ex) {
+			LOG.d(LOG_TAG, "Storage.executeSql(): Error=" + ex.getMessage(), ex);
+			db.transactionFailed = true;
+			this.error(new PluginResult(PluginResult.Status.ERROR, ex.getMessage()), callbackId);
+		}
+		finally {
+			if (myCursor != null) {
+				myCursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Get the JSON fields of the changes made by a statement.
+	 * 
+	 * @param changed
+	 *            {rows affected, id of inserted row (-1 = none)}
+	 * @return "rowsAffected":n,"insertId":n
+	 */
+	private static String getChanges(long[] changed) {
+		String s = "\"rowsAffected\":" + changed[0];
+		if (changed[1] >= 0) {
+			s += ",\"insertId\":" + changed[1];
+		}
+		return s;
+	}
+
 	/**
 	 * Checks to see the the query is a Data Definintion command
 	 * 
@@ -198,6 +515,20 @@ public class Storage extends Plugin {
 		return false;
 	}
 
+	/**
+	 * Checks to see if the query is an insert, update or delete
+	 * 
+	 * @param query to be executed
+	 * @return true if it changes rows, false otherwise
+	 */
+	private boolean isDML(String query) {
+		String cmd = query.trim().toLowerCase();
+		if (cmd.startsWith(INSERT) || cmd.startsWith(REPLACE) || cmd.startsWith(UPDATE) || cmd.startsWith(DELETE)) {
+			return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Process query results.
 	 * 
@@ -208,11 +539,26 @@ public class Storage extends Plugin {
 	 */
 	public void processResults(Cursor cur, String tx_id) {
 
-		String result = "[]";
-		// If query result has rows
+		String result = this.getRows(cur).toString();
+
+		// Let JavaScript know that there are no more rows
+		this.sendJavascript("droiddb.completeQuery('" + tx_id + "', " + result
+				+ ");");
 
+	}
+
+	/**
+	 * Get query results as row objects.
+	 * 
+	 * @param cur
+	 *            Cursor into query results
+	 * @return JSONArray of rows
+	 */
+	private JSONArray getRows(Cursor cur) {
+		JSONArray fullresult = new JSONArray();
+
+		// If query result has rows
 		if (cur.moveToFirst()) {
-			JSONArray fullresult = new JSONArray();
 			String key = "";
 			String value = "";
 			int colCount = cur.getColumnCount();
@@ -233,14 +579,194 @@ public class Storage extends Plugin {
 				}
 
 			} while (cur.moveToNext());
+		}
+		return fullresult;
+	}
 
-			result = fullresult.toString();
+	/**
+	 * Process query results in column format.  The column names are sent once, and
+	 * each row is an array of values in column order:
+	 *      {columns:["id","name"], rows:[[1,"a"],[2,"b"]]}
+	 * 
+	 * @param cur
+	 *            Cursor into query results
+	 * @param tx_id
+	 *            Transaction id
+	 */
+	public void processColumns(Cursor cur, String tx_id) {
+		StringBuilder sb = new StringBuilder("droiddb.completeQuery('");
+		sb.append(tx_id).append("', {\"columns\":");
+		this.appendColumnNames(sb, cur);
+		sb.append(",\"rows\":[");
+		if (cur.moveToFirst()) {
+			int colCount = cur.getColumnCount();
+			do {
+				this.appendValues(sb, cur, colCount);
+				sb.append(',');
+			} while (cur.moveToNext());
+			sb.setLength(sb.length() - 1);
 		}
+		sb.append("]});");
+		this.sendJavascript(sb.toString());
+	}
 
-		// Let JavaScript know that there are no more rows
-		this.sendJavascript("droiddb.completeQuery('" + tx_id + "', " + result
-				+ ");");
+	/**
+	 * Process query results a page at a time.
+	 * 
+	 * @param cur
+	 *            Cursor into query results
+	 * @param pageSize
+	 *            Number of rows in a page
+	 * @param columns
+	 *            T=send results in column format, F=send rows as objects
+	 * @param callbackId
+	 *            The callback id used when calling back into JavaScript.
+	 */
+	private void processResultPages(Cursor cur, int pageSize, boolean columns, String callbackId) {
+		int colCount = cur.getColumnCount();
+		String[] keys = cur.getColumnNames();
+		String names = null;
+		if (columns) {
+			StringBuilder sb = new StringBuilder();
+			this.appendColumnNames(sb, cur);
+			names = sb.toString();
+		}
+		boolean more = cur.moveToFirst();
+		StringBuilder page = new StringBuilder();
+		do {
+			page.setLength(0);
+			page.append("{\"rows\":[");
+			try {
+				for (int n = 0; more && (n < pageSize); n++) {
+					if (n > 0) {
+						page.append(',');
+					}
+					if (columns) {
+						this.appendValues(page, cur, colCount);
+					}
+					else {
+						JSONObject row = new JSONObject();
+						for (int i = 0; i < colCount; ++i) {
+							row.put(keys[i], cur.getString(i));
+						}
+						page.append(row.toString());
+					}
+					more = cur.moveToNext();
+				}
+			} catch (JSONException e) {
+				e.printStackTrace();
+			}
+			page.append("],\"more\":").append(more);
+			if (names != null) {
+				page.append(",\"columns\":").append(names);
+			}
+			page.append('}');
+
+			// Hold page back until JavaScript has caught up with the pages of this query
+			if (!this.ctx.waitForJavascript(callbackId, MAX_PENDING, PAGE_TIMEOUT)) {
+				this.error(new PluginResult(PluginResult.Status.ERROR, "Timed out sending results"), callbackId);
+				return;
+			}
+			this.sendPage(page.toString(), more, callbackId);
+		} while (more);
+	}
+
+	/**
+	 * Send a page of results to JavaScript.
+	 * 
+	 * @param page
+	 *            JSON of the page
+	 * @param more
+	 *            T=more pages follow
+	 * @param callbackId
+	 *            The callback id used when calling back into JavaScript.
+	 */
+	private void sendPage(String page, boolean more, String callbackId) {
+		PluginResult result = PluginResult.fromJSON(PluginResult.Status.OK, page);
+		result.setKeepCallback(more);
+		this.success(result, callbackId);
+	}
 
+	/**
+	 * Append the column names of a query as a JSON array.
+	 * 
+	 * @param sb
+	 * @param cur
+	 *            Cursor into query results
+	 */
+	private void appendColumnNames(StringBuilder sb, Cursor cur) {
+		String[] names = cur.getColumnNames();
+		sb.append('[');
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(JSONObject.quote(names[i]));
+		}
+		sb.append(']');
+	}
+
+	/**
+	 * Append the values of the current row as a JSON array.
+	 * Integers and reals are sent as numbers, blobs as Base64 strings, and nulls as null.
+	 * Before Android 3.0 the type of a value isn't known, so values are sent as strings.
+	 * 
+	 * @param sb
+	 * @param cur
+	 *            Cursor into query results
+	 * @param colCount
+	 *            Number of columns
+	 */
+	private void appendValues(StringBuilder sb, Cursor cur, int colCount) {
+		sb.append('[');
+		for (int i = 0; i < colCount; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			switch (getType(cur, i)) {
+			case FIELD_TYPE_NULL:
+				sb.append("null");
+				break;
+			case FIELD_TYPE_INTEGER:
+				sb.append(cur.getLong(i));
+				break;
+			case FIELD_TYPE_FLOAT:
+				double d = cur.getDouble(i);
+				if (Double.isNaN(d) || Double.isInfinite(d)) {
+					sb.append("null");
+				}
+				else {
+					sb.append(d);
+				}
+				break;
+			case FIELD_TYPE_BLOB:
+				sb.append('"').append(new String(Base64.encodeBase64(cur.getBlob(i)))).append('"');
+				break;
+			default:
+				sb.append(JSONObject.quote(cur.getString(i)));
+			}
+		}
+		sb.append(']');
+	}
+
+	/**
+	 * Get the type of a value, using Cursor.getType() if it's available.
+	 * 
+	 * @param cur
+	 *            Cursor into query results
+	 * @param i
+	 *            Column index
+	 * @return The field type, or -1 if it isn't known
+	 */
+	private static int getType(Cursor cur, int i) {
+		if (getType != null) {
+			try {
+				return ((Integer) getType.invoke(cur, i)).intValue();
+			} catch (Exception e) {
+				getType = null;
+			}
+		}
+		return cur.isNull(i) ? FIELD_TYPE_NULL : -1;
 	}
 
-}
\ No newline at end of file
+}
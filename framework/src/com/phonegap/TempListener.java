@@ -7,8 +7,6 @@
  */
 package com.phonegap;
 
-import java.util.List;
-
 import org.json.JSONArray;
 
 import com.phonegap.api.PhonegapActivity;
@@ -16,15 +14,11 @@ import com.phonegap.api.Plugin;
 import com.phonegap.api.PluginResult;
 
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.content.Context;
 
-public class TempListener extends Plugin implements SensorEventListener {
+public class TempListener extends Plugin implements SensorHub.Watcher {
 	
-    Sensor mSensor;	
-	private SensorManager sensorManager;
+	private SensorHub sensorHub;
 	
 	/**
 	 * Constructor.
@@ -40,7 +34,7 @@ public class TempListener extends Plugin implements SensorEventListener {
 	 */
 	public void setContext(PhonegapActivity ctx) {
 		super.setContext(ctx);
-        this.sensorManager = (SensorManager) ctx.getSystemService(Context.SENSOR_SERVICE);
+        this.sensorHub = SensorManagerSource.getDefaultHub(ctx);
 	}
 
 	/**
@@ -77,24 +71,16 @@ public class TempListener extends Plugin implements SensorEventListener {
     //--------------------------------------------------------------------------
 
 	public void start()	{
-		List<Sensor> list = this.sensorManager.getSensorList(Sensor.TYPE_TEMPERATURE);
-		if (list.size() > 0) {
-			this.mSensor = list.get(0);
-			this.sensorManager.registerListener(this, this.mSensor, SensorManager.SENSOR_DELAY_NORMAL);
-		}
+		this.sensorHub.addWatcher(Sensor.TYPE_TEMPERATURE, this, SensorManager.SENSOR_DELAY_NORMAL);
 	}
 	
 	public void stop() {
-		this.sensorManager.unregisterListener(this);
-	}
-	
-	public void onAccuracyChanged(Sensor sensor, int accuracy) {
-		// TODO Auto-generated method stub
+		this.sensorHub.removeWatcher(Sensor.TYPE_TEMPERATURE, this);
 	}
 
-	public void onSensorChanged(SensorEvent event) {
+	public void onSample(int type, long timestamp, float[] values) {
 		// We want to know what temp this is.
-		float temp = event.values[0];
+		float temp = values[0];
 		this.sendJavascript("gotTemp(" + temp + ");");
 	}
 
@@ -0,0 +1,185 @@
+/*
+ * PhoneGap is available under *either* the terms of the modified BSD license *or* the
+ * MIT License (2008). See http://opensource.org/licenses/alphabetical for full text.
+ *
+ * Copyright (c) 2005-2010, Nitobi Software Inc.
+ * Copyright (c) 2010-2011, IBM Corporation
+ */
+package com.phonegap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class is the approved list of URLs (whitelist) that can be loaded into DroidGap.
+ *
+ * Origins that are a plain http or https host (with optional port) are looked up by host
+ * instead of being matched as regular expressions:
+ *      http://phonegap.com                         host must be phonegap.com
+ *      http://phonegap.com  subdomains=true        host must be phonegap.com or end with .phonegap.com
+ * Any other origin is a regular expression that is matched against the URL.
+ *
+ * The result for each URL is kept in a small cache, so repeated checks of the same URL
+ * (such as the page URL on every call from JavaScript) are a single lookup.
+ */
+public class WhiteList {
+
+    private static final int CACHE_SIZE = 100;
+
+    // An origin that is a plain host with optional port
+    private static final Pattern HOST_ORIGIN = Pattern.compile("^https?://([A-Za-z0-9-]+(\\.[A-Za-z0-9-]+)*)(:[0-9]+)?/?$");
+
+    /**
+     * Node of the host suffix tree.  Labels are stored from the top level domain down.
+     */
+    private static final class Node {
+        HashMap<String, Node> children = null;
+        boolean allowed = false;            // T=this domain and its subdomains are allowed
+    }
+
+    private final HashSet<String> hosts = new HashSet<String>();
+    private final Node domains = new Node();
+    private final ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+
+    @SuppressWarnings("serial")
+    private final LinkedHashMap<String, Boolean> cache = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return this.size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Add entry to approved list of URLs.
+     *
+     * @param origin        URL regular expression to allow
+     * @param subdomains    T=include all subdomains under origin
+     */
+    public synchronized void addEntry(String origin, boolean subdomains) {
+        Matcher m = HOST_ORIGIN.matcher(origin);
+        if (m.matches() && !(subdomains && (m.group(3) != null))) {
+            String host = m.group(1).toLowerCase();
+            if (subdomains) {
+                Node node = this.domains;
+                int end = host.length();
+                while (end > 0) {
+                    int dot = host.lastIndexOf('.', end - 1);
+                    String label = host.substring(dot + 1, end);
+                    if (node.children == null) {
+                        node.children = new HashMap<String, Node>();
+                    }
+                    Node child = node.children.get(label);
+                    if (child == null) {
+                        child = new Node();
+                        node.children.put(label, child);
+                    }
+                    node = child;
+                    end = dot;
+                }
+                node.allowed = true;
+            }
+            else {
+                this.hosts.add((m.group(3) != null) ? host + m.group(3) : host);
+            }
+        }
+        else if (subdomains) {
+            this.patterns.add(Pattern.compile(origin.replaceFirst("https{0,1}://", "^https{0,1}://.*")));
+        }
+        else {
+            this.patterns.add(Pattern.compile(origin.replaceFirst("https{0,1}://", "^https{0,1}://")));
+        }
+        this.cache.clear();
+    }
+
+    /**
+     * Determine if URL is in approved list of URLs to load.
+     *
+     * @param url
+     * @return
+     */
+    public synchronized boolean isWhiteListed(String url) {
+        if (url == null) {
+            return false;
+        }
+        Boolean cached = this.cache.get(url);
+        if (cached != null) {
+            return cached.booleanValue();
+        }
+        boolean allowed = this.isHostAllowed(url) || this.isPatternAllowed(url);
+        this.cache.put(url, Boolean.valueOf(allowed));
+        return allowed;
+    }
+
+    /**
+     * Look up the host of an http or https URL.
+     *
+     * @param url
+     * @return
+     */
+    private boolean isHostAllowed(String url) {
+        int start;
+        if (url.startsWith("http://")) {
+            start = 7;
+        }
+        else if (url.startsWith("https://")) {
+            start = 8;
+        }
+        else {
+            return false;
+        }
+        int end = start;
+        while (end < url.length()) {
+            char c = url.charAt(end);
+            if ((c == '/') || (c == '?') || (c == '#')) {
+                break;
+            }
+            end++;
+        }
+        int at = url.lastIndexOf('@', end - 1);
+        if (at >= start) {
+            start = at + 1;
+        }
+        String authority = url.substring(start, end).toLowerCase();
+        int colon = authority.lastIndexOf(':');
+        String host = (colon >= 0) ? authority.substring(0, colon) : authority;
+        if (this.hosts.contains(authority) || ((colon >= 0) && this.hosts.contains(host))) {
+            return true;
+        }
+
+        // Walk down the domains from the top level domain
+        Node node = this.domains;
+        end = host.length();
+        while ((end > 0) && (node.children != null)) {
+            int dot = host.lastIndexOf('.', end - 1);
+            node = node.children.get(host.substring(dot + 1, end));
+            if (node == null) {
+                return false;
+            }
+            if (node.allowed) {
+                return true;
+            }
+            end = dot;
+        }
+        return false;
+    }
+
+    /**
+     * Match URL against the origins that are regular expressions.
+     *
+     * @param url
+     * @return
+     */
+    private boolean isPatternAllowed(String url) {
+        for (int i = 0; i < this.patterns.size(); i++) {
+            if (this.patterns.get(i).matcher(url).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -31,6 +31,71 @@ public abstract class PhonegapActivity extends Activity {
      */
     abstract public void sendJavascript(String statement);
 
+    /**
+     * Send JavaScript statement for a callback back to JavaScript.
+     * 
+     * @param statement
+     * @param callbackId		The callback id the statement is for
+     */
+    public void sendJavascript(String statement, String callbackId) {
+        this.sendJavascript(statement);
+    }
+
+    /**
+     * Send JavaScript statement for a callback back to JavaScript.
+     * 
+     * @param statement
+     * @param callbackId		The callback id the statement is for
+     * @param coalesce			T=replace the statement for callbackId that hasn't been sent yet, if any
+     */
+    public void sendJavascript(String statement, String callbackId, boolean coalesce) {
+        this.sendJavascript(statement, callbackId);
+    }
+
+    /**
+     * Wait until fewer than a number of statements are waiting to be sent to JavaScript.
+     * A plugin that sends many results in a row can use this to keep pace with JavaScript.
+     * 
+     * @param size				The number of statements
+     * @param timeout			Maximum msec to wait
+     * @return					F=timed out
+     */
+    public boolean waitForJavascript(int size, long timeout) {
+        return true;
+    }
+
+    /**
+     * Wait until fewer than a number of statements for a callback are waiting to be sent to
+     * JavaScript.  Unlike waitForJavascript(size, timeout), statements for other callbacks
+     * don't hold the plugin back.
+     * 
+     * @param callbackId		The callback id the statements are for
+     * @param size				The number of statements
+     * @param timeout			Maximum msec to wait
+     * @return					F=timed out
+     */
+    public boolean waitForJavascript(String callbackId, int size, long timeout) {
+        return true;
+    }
+
+    /**
+     * Send the result of a plugin call back to JavaScript.
+     * 
+     * @param result			The result
+     * @param callbackId		The callback id the result is for
+     * @param success			T=call success callback, F=call error callback
+     */
+    public void sendPluginResult(PluginResult result, String callbackId, boolean success) {
+        String statement;
+        if (success) {
+            statement = result.toSuccessCallbackString(callbackId);
+        }
+        else {
+            statement = result.toErrorCallbackString(callbackId);
+        }
+        this.sendJavascript(statement, callbackId, result.getCoalesce());
+    }
+
     /**
      * Launch an activity for which you would like a result when it finished. When this activity exits, 
      * your onActivityResult() method will be called.
@@ -44,6 +44,20 @@ public abstract class Plugin implements IPlugin {
 		return false;
 	}
 
+	/**
+	 * Get the execution lane of an async action.
+	 * Actions in the same lane are run one at a time, in the order they were called.
+	 * Actions in different lanes, or with no lane, can run at the same time.
+	 * Only plugins that extend Plugin can have lanes.
+	 * 
+	 * @param action	The action to execute
+	 * @param args		JSONArry of arguments for the plugin.
+	 * @return			The lane (file path, database name, etc.), or null if the action can run at any time
+	 */
+	public String getExecutionLane(String action, JSONArray args) {
+		return null;
+	}
+
 	/**
 	 * Sets the context of the Plugin. This can then be used to do things like
 	 * get file paths associated with the Activity.
@@ -124,6 +138,17 @@ public abstract class Plugin implements IPlugin {
     	this.ctx.sendJavascript(statement);
     }
 
+    /**
+     * Send JavaScript statement that reports the latest state of something back to JavaScript.
+     * It replaces the statement sent with the same key that hasn't been delivered yet, if any.
+     * 
+     * @param statement
+     * @param key				Identifies what the statement reports on
+     */
+    public void sendLatestJavascript(String statement, String key) {
+    	this.ctx.sendJavascript(statement, key, true);
+    }
+
     /**
      * Call the JavaScript success callback for this plugin.
      * 
@@ -135,7 +160,7 @@ public abstract class Plugin implements IPlugin {
 	 * @param callbackId		The callback id used when calling back into JavaScript.
      */
     public void success(PluginResult pluginResult, String callbackId) {
-    	this.ctx.sendJavascript(pluginResult.toSuccessCallbackString(callbackId));
+    	this.ctx.sendPluginResult(pluginResult, callbackId, true);
     }
 
     /**
@@ -145,7 +170,7 @@ public abstract class Plugin implements IPlugin {
      * @param callbackId		The callback id used when calling back into JavaScript.
      */
     public void success(JSONObject message, String callbackId) {
-    	this.ctx.sendJavascript(new PluginResult(PluginResult.Status.OK, message).toSuccessCallbackString(callbackId));
+    	this.ctx.sendPluginResult(new PluginResult(PluginResult.Status.OK, message), callbackId, true);
     }
 
     /**
@@ -155,7 +180,7 @@ public abstract class Plugin implements IPlugin {
      * @param callbackId		The callback id used when calling back into JavaScript.
      */
     public void success(String message, String callbackId) {
-    	this.ctx.sendJavascript(new PluginResult(PluginResult.Status.OK, message).toSuccessCallbackString(callbackId));
+    	this.ctx.sendPluginResult(new PluginResult(PluginResult.Status.OK, message), callbackId, true);
     }
     
     /**
@@ -165,7 +190,7 @@ public abstract class Plugin implements IPlugin {
 	 * @param callbackId		The callback id used when calling back into JavaScript.
      */
     public void error(PluginResult pluginResult, String callbackId) {
-    	this.ctx.sendJavascript(pluginResult.toErrorCallbackString(callbackId));
+    	this.ctx.sendPluginResult(pluginResult, callbackId, false);
     }
 
     /**
@@ -175,7 +200,7 @@ public abstract class Plugin implements IPlugin {
      * @param callbackId		The callback id used when calling back into JavaScript.
      */
     public void error(JSONObject message, String callbackId) {
-    	this.ctx.sendJavascript(new PluginResult(PluginResult.Status.ERROR, message).toErrorCallbackString(callbackId));
+    	this.ctx.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message), callbackId, false);
     }
 
     /**
@@ -185,6 +210,6 @@ public abstract class Plugin implements IPlugin {
      * @param callbackId		The callback id used when calling back into JavaScript.
      */
     public void error(String message, String callbackId) {
-    	this.ctx.sendJavascript(new PluginResult(PluginResult.Status.ERROR, message).toErrorCallbackString(callbackId));
+    	this.ctx.sendPluginResult(new PluginResult(PluginResult.Status.ERROR, message), callbackId, false);
     }
 }
@@ -0,0 +1,355 @@
+/*
+ * PhoneGap is available under *either* the terms of the modified BSD license *or* the
+ * MIT License (2008). See http://opensource.org/licenses/alphabetical for full text.
+ *
+ * Copyright (c) 2005-2010, Nitobi Software Inc.
+ * Copyright (c) 2010, IBM Corporation
+ */
+package com.phonegap.api;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs async plugin calls for PluginManager.
+ *
+ * Calls are run on a shared executor, which by default is a pool with a fixed number
+ * of threads and a bounded queue.  In addition, a service can be limited to a number of
+ * concurrent calls, with a bounded queue of calls waiting for their turn.
+ *
+ * Limits are declared in res/xml/plugins.xml:
+ *
+ * 		<executor threads="4" queue="500"/>
+ * 		<plugin name="File" value="com.phonegap.FileUtils" threads="2" queue="100"/>
+ *
+ * A call that doesn't fit in a queue is rejected, instead of being run.
+ *
+ * Calls can also be given a lane.  Calls to a service in the same lane are run one at
+ * a time, in the order they were made, while calls in other lanes run in parallel.
+ */
+public class PluginExecutor {
+
+	public static final int DEFAULT_THREADS = 4;
+	public static final int DEFAULT_QUEUE = 500;
+
+	private static final long KEEP_ALIVE = 30;		// Seconds an idle pool thread is kept
+
+	/**
+	 * A call to be run by the executor.
+	 */
+	public interface Job extends Runnable {
+
+		/**
+		 * Called instead of run() if the call could not be queued.
+		 *
+		 * @param reason		Why the call was rejected
+		 */
+		public void reject(String reason);
+	}
+
+	/**
+	 * Concurrency limit of a service.
+	 */
+	private static final class Limit {
+		final int threads;					// Maximum number of calls running at once
+		final int queue;					// Maximum number of calls waiting to run
+		int running = 0;
+		final LinkedList<Job> waiting = new LinkedList<Job>();
+
+		Limit(int threads, int queue) {
+			this.threads = threads;
+			this.queue = queue;
+		}
+	}
+
+	private final Executor executor;
+
+	// Limits by service name (guarded by this)
+	private final HashMap<String, Limit> limits = new HashMap<String, Limit>();
+
+	// Lanes with a call running or waiting, by service and lane name (guarded by this)
+	private final HashMap<String, Limit> lanes = new HashMap<String, Limit>();
+
+	/**
+	 * Constructor.
+	 * Creates a pool with the default number of threads and queue size.
+	 */
+	public PluginExecutor() {
+		this(DEFAULT_THREADS, DEFAULT_QUEUE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param threads		Maximum number of pool threads
+	 * @param queue			Maximum number of calls waiting for a pool thread
+	 */
+	public PluginExecutor(int threads, int queue) {
+		this(createPool(threads, queue));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param executor		The executor to run calls on.  It should throw RejectedExecutionException
+	 * 						when it is full.
+	 */
+	public PluginExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Create a pool with a fixed maximum of threads and a bounded queue.
+	 *
+	 * @param threads
+	 * @param queue
+	 * @return ThreadPoolExecutor
+	 */
+	private static ThreadPoolExecutor createPool(int threads, int queue) {
+		threads = (threads > 0) ? threads : DEFAULT_THREADS;
+		queue = (queue > 0) ? queue : DEFAULT_QUEUE;
+		final AtomicInteger count = new AtomicInteger(0);
+		return new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(queue),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "PluginExecutor-" + count.incrementAndGet());
+					}
+				});
+	}
+
+	/**
+	 * Limit the number of calls to a service that run at once.
+	 *
+	 * @param service		The service name
+	 * @param threads		Maximum number of calls running at once (0 = no limit)
+	 * @param queue			Maximum number of calls waiting to run
+	 */
+	public synchronized void setLimit(String service, int threads, int queue) {
+		if (threads > 0) {
+			this.limits.put(service, new Limit(threads, Math.max(queue, 0)));
+		}
+		else {
+			this.limits.remove(service);
+		}
+	}
+
+	/**
+	 * Run a call to a service.
+	 * If the call can't be queued, then job.reject() is called.
+	 *
+	 * @param service		The service name
+	 * @param job			The call
+	 */
+	public void execute(String service, Job job) {
+		Limit limit;
+		boolean full = false;
+		synchronized (this) {
+			limit = this.limits.get(service);
+			if (limit != null) {
+				if (limit.running < limit.threads) {
+					limit.running++;
+				}
+				else if (limit.waiting.size() < limit.queue) {
+					limit.waiting.add(job);
+					return;
+				}
+				else {
+					full = true;
+				}
+			}
+		}
+		if (full) {
+			job.reject("Too many pending calls to " + service);
+			return;
+		}
+		if (!this.dispatch(limit, job)) {
+			job.reject("Too many pending plugin calls");
+			if (limit != null) {
+				this.next(limit);
+			}
+		}
+	}
+
+	/**
+	 * Run a call to a service, after all earlier calls in the same lane are done.
+	 * If the call can't be queued, then job.reject() is called.
+	 *
+	 * @param service		The service name
+	 * @param lane			The lane (can be null)
+	 * @param job			The call
+	 */
+	public void execute(String service, String lane, Job job) {
+		if (lane == null) {
+			this.execute(service, job);
+			return;
+		}
+		String key = service + '\n' + lane;
+		boolean start = false;
+		boolean full = false;
+		synchronized (this) {
+			Limit limit = this.lanes.get(key);
+			if (limit == null) {
+				limit = new Limit(1, DEFAULT_QUEUE);
+				this.lanes.put(key, limit);
+			}
+			if (limit.running == 0) {
+				limit.running = 1;
+				start = true;
+			}
+			else if (limit.waiting.size() < limit.queue) {
+				limit.waiting.add(job);
+			}
+			else {
+				full = true;
+			}
+		}
+		if (start) {
+			this.startInLane(service, key, job);
+		}
+		else if (full) {
+			job.reject("Too many pending calls to " + service);
+		}
+	}
+
+	/**
+	 * A call in a lane.  The next call in the lane is started once this one is done.
+	 */
+	private final class LaneJob implements Job {
+		final String service;
+		final String key;
+		final Job job;
+		boolean starting = true;			// startInLane() is still handing call to executor (guarded by this)
+		boolean rejected = false;			// guarded by this
+
+		LaneJob(String service, String key, Job job) {
+			this.service = service;
+			this.key = key;
+			this.job = job;
+		}
+
+		public void run() {
+			try {
+				this.job.run();
+			} finally {
+				startInLane(this.service, this.key, pollLane(this.key));
+			}
+		}
+
+		public void reject(String reason) {
+			this.job.reject(reason);
+			boolean starting;
+			synchronized (this) {
+				this.rejected = true;
+				starting = this.starting;
+			}
+
+			// If rejected while being started, startInLane() goes on to the next call
+			if (!starting) {
+				startInLane(this.service, this.key, pollLane(this.key));
+			}
+		}
+	}
+
+	/**
+	 * Start a call in a lane.  If the call is rejected, the calls waiting in the lane
+	 * are started, one after another, until one is accepted or the lane is empty.
+	 *
+	 * @param service
+	 * @param key
+	 * @param job			The call (null = none)
+	 */
+	private void startInLane(String service, String key, Job job) {
+		while (job != null) {
+			LaneJob laneJob = new LaneJob(service, key, job);
+			this.execute(service, laneJob);
+			synchronized (laneJob) {
+				laneJob.starting = false;
+				if (!laneJob.rejected) {
+					return;
+				}
+			}
+			job = this.pollLane(key);
+		}
+	}
+
+	/**
+	 * Called when a call in a lane is done.  Get the next call in the lane.
+	 *
+	 * @param key
+	 * @return				The next call, or null if the lane is empty
+	 */
+	private synchronized Job pollLane(String key) {
+		Limit limit = this.lanes.get(key);
+		Job job = limit.waiting.poll();
+		if (job == null) {
+			this.lanes.remove(key);
+		}
+		return job;
+	}
+
+	/**
+	 * Stop the executor.  Calls that are still queued may not be run.
+	 */
+	public void shutdown() {
+		if (this.executor instanceof ExecutorService) {
+			((ExecutorService)this.executor).shutdown();
+		}
+	}
+
+	/**
+	 * Hand a call to the executor.
+	 *
+	 * @param limit			The limit of the call's service, which has counted it as running (can be null)
+	 * @param job
+	 * @return				F=executor rejected the call
+	 */
+	private boolean dispatch(final Limit limit, final Job job) {
+		try {
+			this.executor.execute(new Runnable() {
+				public void run() {
+					try {
+						job.run();
+					} finally {
+						if (limit != null) {
+							next(limit);
+						}
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Called when a call to a limited service is done.  Start the next waiting call, if any.
+	 *
+	 * @param limit
+	 */
+	private void next(Limit limit) {
+		while (true) {
+			Job job;
+			synchronized (this) {
+				job = limit.waiting.poll();
+				if (job == null) {
+					limit.running--;
+					return;
+				}
+			}
+			if (this.dispatch(limit, job)) {
+				return;
+			}
+			job.reject("Too many pending plugin calls");
+		}
+	}
+}
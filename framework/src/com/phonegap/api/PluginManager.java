@@ -8,9 +8,12 @@
 package com.phonegap.api;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -29,12 +32,31 @@ import android.webkit.WebView;
  */
 public final class PluginManager {
 
-	private HashMap<String, IPlugin> plugins = new HashMap<String,IPlugin>();
-	private HashMap<String, String> services = new HashMap<String,String>();
+	private ConcurrentHashMap<String, IPlugin> plugins = new ConcurrentHashMap<String,IPlugin>();
+	private ConcurrentHashMap<String, String> services = new ConcurrentHashMap<String,String>();
+	
+	/**
+	 * The contents of res/xml/plugins.xml.
+	 */
+	private static final class PluginConfig {
+		final LinkedHashMap<String, String> services = new LinkedHashMap<String, String>();
+		final HashMap<String, String> urlFilters = new HashMap<String, String>();
+		final HashMap<String, int[]> limits = new HashMap<String, int[]>();
+		final ArrayList<String> onload = new ArrayList<String>();
+		int poolThreads = PluginExecutor.DEFAULT_THREADS;
+		int poolQueue = PluginExecutor.DEFAULT_QUEUE;
+	}
+	
+	// Parsed plugins.xml and resolved plugin classes, which don't change while the app is running
+	private static PluginConfig config = null;
+	private static ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
 	
 	private final PhonegapActivity ctx;
 	private final WebView app;
 	
+	// Runs async plugin calls
+	private PluginExecutor executor = null;
+	
     // Map URL schemes like foo: to plugins that want to handle those schemes
     // This would allow how all URLs are handled to be offloaded to a plugin
     protected HashMap<String, String> urlMap = new HashMap<String,String>();
@@ -53,8 +75,42 @@ public final class PluginManager {
 	
 	/**
 	 * Load plugins from res/xml/plugins.xml
+	 * 
+	 * Thread limits for async calls can be set for all plugins with the executor element, 
+	 * and for each plugin with the threads and queue attributes.
+	 * 
+	 * Plugin classes are loaded in the background.  Plugins with onload="true" are then 
+	 * created on the UI thread, so they are ready before they are first called.
 	 */
 	public void loadPlugins() {
+		PluginConfig config = getConfig(this.ctx);
+		for (Entry<String, String> service : config.services.entrySet()) {
+			this.addService(service.getKey(), service.getValue());
+		}
+		this.urlMap.putAll(config.urlFilters);
+		
+		// Create executor unless one has already been set
+		if (this.executor == null) {
+			this.executor = new PluginExecutor(config.poolThreads, config.poolQueue);
+		}
+		for (Entry<String, int[]> limit : config.limits.entrySet()) {
+			this.executor.setLimit(limit.getKey(), limit.getValue()[0], limit.getValue()[1]);
+		}
+		
+		this.preload(new ArrayList<String>(config.services.values()), config.onload);
+	}
+	
+	/**
+	 * Get the contents of res/xml/plugins.xml.  The file is only parsed once.
+	 * 
+	 * @param ctx
+	 * @return PluginConfig
+	 */
+	private static synchronized PluginConfig getConfig(PhonegapActivity ctx) {
+		if (config != null) {
+			return config;
+		}
+		PluginConfig config = new PluginConfig();
 		int id = ctx.getResources().getIdentifier("plugins", "xml", ctx.getPackageName());
 		if (id == 0) { pluginConfigurationMissing(); }
 		XmlResourceParser xml = ctx.getResources().getXml(id);
@@ -67,9 +123,19 @@ public final class PluginManager {
 					pluginClass = xml.getAttributeValue(null, "value");
 					pluginName = xml.getAttributeValue(null, "name");
 					//System.out.println("Plugin: "+name+" => "+value);
-					this.addService(pluginName, pluginClass);
+					config.services.put(pluginName, pluginClass);
+					int threads = xml.getAttributeIntValue(null, "threads", 0);
+					if (threads > 0) {
+						config.limits.put(pluginName, new int[] { threads, xml.getAttributeIntValue(null, "queue", PluginExecutor.DEFAULT_QUEUE) });
+					}
+					if (xml.getAttributeBooleanValue(null, "onload", false)) {
+						config.onload.add(pluginName);
+					}
+				} else if (strNode.equals("executor")) {
+					config.poolThreads = xml.getAttributeIntValue(null, "threads", config.poolThreads);
+					config.poolQueue = xml.getAttributeIntValue(null, "queue", config.poolQueue);
 				} else if (strNode.equals("url-filter")) {
-					this.urlMap.put(xml.getAttributeValue(null, "value"), pluginName);
+					config.urlFilters.put(xml.getAttributeValue(null, "value"), pluginName);
 				}
 			}
 			try {
@@ -80,6 +146,63 @@ public final class PluginManager {
 				e.printStackTrace();
 			}
 		}
+		PluginManager.config = config;
+		return config;
+	}
+	
+	/**
+	 * Load plugin classes without blocking the calling thread, and then create the 
+	 * onload plugins.  Plugins are created on the UI thread, since they may use the 
+	 * WebView or need a Looper.
+	 * 
+	 * @param classNames		Plugin classes to load
+	 * @param onload			Services whose plugins are to be created
+	 */
+	private void preload(final ArrayList<String> classNames, final ArrayList<String> onload) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				for (String className : classNames) {
+					try {
+						getClassByName(className);
+					} catch (Throwable e) {
+						Log.d("PluginManager", "Unable to load plugin class "+className);
+					}
+				}
+				if (onload.isEmpty()) {
+					return;
+				}
+				ctx.runOnUiThread(new Runnable() {
+					public void run() {
+						for (String service : onload) {
+							getPlugin(service);
+						}
+					}
+				});
+			}
+		}, "PluginManager-preload");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+	
+	/**
+	 * Set the executor that runs async plugin calls.
+	 * 
+	 * @param executor
+	 */
+	public void setExecutor(PluginExecutor executor) {
+		if ((this.executor != null) && (this.executor != executor)) {
+			this.executor.shutdown();
+		}
+		this.executor = executor;
+	}
+	
+	/**
+	 * Get the executor that runs async plugin calls.
+	 * 
+	 * @return PluginExecutor
+	 */
+	public PluginExecutor getExecutor() {
+		return this.executor;
 	}
 
 	/**
@@ -104,66 +227,95 @@ public final class PluginManager {
 	 * 
 	 * @return 				JSON encoded string with a response message and status.
 	 */
-	@SuppressWarnings("unchecked")
 	public String exec(final String service, final String action, final String callbackId, final String jsonArgs, final boolean async) {
+		JSONArray args;
+		try {
+			args = new JSONArray(jsonArgs);
+		} catch (JSONException e) {
+			System.out.println("ERROR: "+e.toString());
+			PluginResult cr = new PluginResult(PluginResult.Status.JSON_EXCEPTION);
+			if (async) {
+				ctx.sendPluginResult(cr, callbackId, false);
+			}
+			return cr.getJSONString();
+		}
+		return this.exec(service, action, callbackId, args, async);
+	}
+
+	/**
+	 * Receives a request for execution with arguments that have already been parsed.
+	 * 
+	 * @param service 		String containing the service to run
+	 * @param action 		String containt the action that the class is supposed to perform.
+	 * @param callbackId 	String containing the id of the callback that is execute in JavaScript if
+	 * 						this is an async plugin call.
+	 * @param args 			JSONArray of arguments needed in the plugin execute method.
+	 * @param async 		Boolean indicating whether the calling JavaScript code is expecting an
+	 * 						immediate return value.
+	 * 
+	 * @return 				JSON encoded string with a response message and status.
+	 */
+	public String exec(final String service, final String action, final String callbackId, final JSONArray args, final boolean async) {
 		PluginResult cr = null;
 		boolean runAsync = async;
-		try {
-			final JSONArray args = new JSONArray(jsonArgs);
-			final IPlugin plugin = this.getPlugin(service); 
-			final PhonegapActivity ctx = this.ctx;
-			if (plugin != null) {
-				runAsync = async && !plugin.isSynch(action);
-				if (runAsync) {
-					// Run this on a different thread so that this one can return back to JS
-					Thread thread = new Thread(new Runnable() {
-						public void run() {
-							try {
-								// Call execute on the plugin so that it can do it's thing
-								PluginResult cr = plugin.execute(action, args, callbackId);
-								int status = cr.getStatus();
+		final IPlugin plugin = this.getPlugin(service); 
+		final PhonegapActivity ctx = this.ctx;
+		if (plugin != null) {
+			runAsync = async && !plugin.isSynch(action);
+			if (runAsync) {
+				String lane = null;
+				if (plugin instanceof Plugin) {
+					lane = ((Plugin)plugin).getExecutionLane(action, args);
+				}
 
-								// If no result to be sent and keeping callback, then no need to sent back to JavaScript
-								if ((status == PluginResult.Status.NO_RESULT.ordinal()) && cr.getKeepCallback()) {
-								}
+				// Run this on a different thread so that this one can return back to JS
+				this.executor.execute(service, lane, new PluginExecutor.Job() {
+					public void run() {
+						try {
+							// Call execute on the plugin so that it can do it's thing
+							PluginResult cr = plugin.execute(action, args, callbackId);
+							int status = cr.getStatus();
 
-								// Check the success (OK, NO_RESULT & !KEEP_CALLBACK)
-								else if ((status == PluginResult.Status.OK.ordinal()) || (status == PluginResult.Status.NO_RESULT.ordinal())) {
-									ctx.sendJavascript(cr.toSuccessCallbackString(callbackId));
-								} 
-								
-								// If error
-								else {
-									ctx.sendJavascript(cr.toErrorCallbackString(callbackId));
-								}
-							} catch (Exception e) {
-								PluginResult cr = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
-								ctx.sendJavascript(cr.toErrorCallbackString(callbackId));
+							// If no result to be sent and keeping callback, then no need to sent back to JavaScript
+							if ((status == PluginResult.Status.NO_RESULT.ordinal()) && cr.getKeepCallback()) {
 							}
-						}
-					});
-					thread.start();
-					return "";
-				} else {
-					// Call execute on the plugin so that it can do it's thing
-					cr = plugin.execute(action, args, callbackId);
 
-					// If no result to be sent and keeping callback, then no need to sent back to JavaScript
-					if ((cr.getStatus() == PluginResult.Status.NO_RESULT.ordinal()) && cr.getKeepCallback()) {
-						return "";
+							// Check the success (OK, NO_RESULT & !KEEP_CALLBACK)
+							else if ((status == PluginResult.Status.OK.ordinal()) || (status == PluginResult.Status.NO_RESULT.ordinal())) {
+								ctx.sendPluginResult(cr, callbackId, true);
+							} 
+							
+							// If error
+							else {
+								ctx.sendPluginResult(cr, callbackId, false);
+							}
+						} catch (Exception e) {
+							PluginResult cr = new PluginResult(PluginResult.Status.ERROR, e.getMessage());
+							ctx.sendPluginResult(cr, callbackId, false);
+						}
+					}
+					public void reject(String reason) {
+						PluginResult cr = new PluginResult(PluginResult.Status.ERROR, reason);
+						ctx.sendPluginResult(cr, callbackId, false);
 					}
+				});
+				return "";
+			} else {
+				// Call execute on the plugin so that it can do it's thing
+				cr = plugin.execute(action, args, callbackId);
+
+				// If no result to be sent and keeping callback, then no need to sent back to JavaScript
+				if ((cr.getStatus() == PluginResult.Status.NO_RESULT.ordinal()) && cr.getKeepCallback()) {
+					return "";
 				}
 			}
-		} catch (JSONException e) {
-			System.out.println("ERROR: "+e.toString());
-			cr = new PluginResult(PluginResult.Status.JSON_EXCEPTION);
 		}
 		// if async we have already returned at this point unless there was an error...
 		if (runAsync) {
 			if (cr == null) {
 				cr = new PluginResult(PluginResult.Status.CLASS_NOT_FOUND_EXCEPTION);				
 			}
-			ctx.sendJavascript(cr.toErrorCallbackString(callbackId));
+			ctx.sendPluginResult(cr, callbackId, false);
 		}
 		return ( cr != null ? cr.getJSONString() : "{ status: 0, message: 'all good' }" );
 	}
@@ -175,11 +327,14 @@ public final class PluginManager {
 	 * @return
 	 * @throws ClassNotFoundException
 	 */
-	@SuppressWarnings("unchecked")
-	private Class getClassByName(final String clazz) throws ClassNotFoundException {
-		Class c = null;
+	private static Class<?> getClassByName(final String clazz) throws ClassNotFoundException {
+		Class<?> c = null;
 		if (clazz != null) {
-			c = Class.forName(clazz);
+			c = classes.get(clazz);
+			if (c == null) {
+				c = Class.forName(clazz);
+				classes.put(clazz, c);
+			}
 		}
 		return c;
 	}
@@ -191,8 +346,7 @@ public final class PluginManager {
 	 * @param c The class to check the interfaces of.
 	 * @return Boolean indicating if the class implements com.phonegap.api.Plugin
 	 */
-	@SuppressWarnings("unchecked")
-	private boolean isPhoneGapPlugin(Class c) {
+	private boolean isPhoneGapPlugin(Class<?> c) {
 		if (c != null) {
 			return com.phonegap.api.Plugin.class.isAssignableFrom(c) || com.phonegap.api.IPlugin.class.isAssignableFrom(c);
 		}
@@ -208,16 +362,17 @@ public final class PluginManager {
      * @param callbackId			The callback id to use when calling back into JavaScript
      * @return						The plugin
      */
-	@SuppressWarnings("unchecked")
 	private IPlugin addPlugin(String pluginName, String className) {
 		try {
-			Class c = getClassByName(className);
+			Class<?> c = getClassByName(className);
 			if (isPhoneGapPlugin(c)) {
 				IPlugin plugin = (IPlugin)c.newInstance();
-				this.plugins.put(className, plugin);
 				plugin.setContext(this.ctx);
 				plugin.setView(this.app);
 				plugin.onResume(true);
+
+				// Only publish plugin once it is set up, since other threads get it without a lock
+				this.plugins.put(className, plugin);
 				return plugin;
 			}
     	} catch (Exception e) {
@@ -237,11 +392,22 @@ public final class PluginManager {
      */
     private IPlugin getPlugin(String pluginName) {
 		String className = this.services.get(pluginName);
-    	if (this.plugins.containsKey(className)) {
-    		return this.plugins.get(className);
-    	} else {
-	    	return this.addPlugin(pluginName, className);
-	    }
+		if (className == null) {
+			return null;
+		}
+		IPlugin plugin = this.plugins.get(className);
+		if (plugin != null) {
+			return plugin;
+		}
+		
+		// Plugin may be being created by another thread
+		synchronized (this) {
+			plugin = this.plugins.get(className);
+			if (plugin == null) {
+				plugin = this.addPlugin(pluginName, className);
+			}
+		}
+		return plugin;
     }
     
     /**
@@ -252,7 +418,9 @@ public final class PluginManager {
      * @param className
      */
     public void addService(String serviceType, String className) {
-    	this.services.put(serviceType, className);
+    	if ((serviceType != null) && (className != null)) {
+    		this.services.put(serviceType, className);
+    	}
     }
 
     /**
@@ -296,6 +464,9 @@ public final class PluginManager {
     		IPlugin plugin = entry.getValue();
     		plugin.onDestroy();
     	}
+    	if (this.executor != null) {
+    		this.executor.shutdown();
+    	}
     }
     
     /**
@@ -328,7 +499,7 @@ public final class PluginManager {
     	return false;
     }
 
-	private void pluginConfigurationMissing() {
+	private static void pluginConfigurationMissing() {
 		System.err.println("=====================================================================================");
 		System.err.println("ERROR: plugin.xml is missing.  Add res/xml/plugins.xml to your project.");      
 		System.err.println("https://raw.github.com/phonegap/phonegap-android/master/framework/res/xml/plugins.xml");        
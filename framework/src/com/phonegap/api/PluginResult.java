@@ -7,73 +7,179 @@
  */
 package com.phonegap.api;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.commons.codec.binary.Base64;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import android.util.Log;
 
 public class PluginResult {
+	private static final int MESSAGE_ENCODED = 0;
+	private static final int MESSAGE_STRING = 1;
+	private static final int MESSAGE_JSON = 2;
+	private static final int MESSAGE_INT = 3;
+	private static final int MESSAGE_FLOAT = 4;
+	private static final int MESSAGE_BOOLEAN = 5;
+	private static final int MESSAGE_BINARY = 6;
+
+	private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
 	private final int status;
-	private final String message;
+	private final int messageType;
+	private String message;				// JSON encoded message, created when first needed
+	private Object value;				// String message that hasn't been encoded, or binary data
+	private int intValue;
+	private float floatValue;
+	private boolean booleanValue;
+	private String mimeType;			// Type of binary message
+	private String binaryUrl;			// URL that binary message is served from
 	private boolean keepCallback = false;
+	private boolean coalesce = false;	// T=replace an undelivered result for the same callback
 	private String cast = null;
 	
 	public PluginResult(Status status) {
 		this.status = status.ordinal();
+		this.messageType = MESSAGE_ENCODED;
 		this.message = "'" + PluginResult.StatusMessages[this.status] + "'";
 	}
 	
 	public PluginResult(Status status, String message) {
 		this.status = status.ordinal();
-		this.message = JSONObject.quote(message);
+		this.messageType = MESSAGE_STRING;
+		this.value = message;
 	}
 
+	// JSON messages are encoded when the result is created, since the plugin may
+	// change the object after the result has been sent.
+
 	public PluginResult(Status status, JSONArray message, String cast) {
 		this.status = status.ordinal();
+		this.messageType = MESSAGE_JSON;
 		this.message = message.toString();
 		this.cast = cast;
 	}
 
 	public PluginResult(Status status, JSONObject message, String cast) {
 		this.status = status.ordinal();
+		this.messageType = MESSAGE_JSON;
 		this.message = message.toString();
 		this.cast = cast;
 	}
 
 	public PluginResult(Status status, JSONArray message) {
 		this.status = status.ordinal();
+		this.messageType = MESSAGE_JSON;
 		this.message = message.toString();
 	}
 
 	public PluginResult(Status status, JSONObject message) {
 		this.status = status.ordinal();
+		this.messageType = MESSAGE_JSON;
 		this.message = message.toString();
 	}
 
+	/**
+	 * Create a result with a message that is JSON text the plugin has already encoded, such 
+	 * as a large array written directly to a buffer.
+	 * 
+	 * @param status
+	 * @param json			The JSON text of the message
+	 * @return				The result
+	 */
+	public static PluginResult fromJSON(Status status, String json) {
+		return new PluginResult(status, MESSAGE_ENCODED, json);
+	}
+	
+	private PluginResult(Status status, int messageType, String message) {
+		this.status = status.ordinal();
+		this.messageType = messageType;
+		this.message = message;
+	}
+	
 	public PluginResult(Status status, int i) {
 		this.status = status.ordinal();
-		this.message = ""+i;
+		this.messageType = MESSAGE_INT;
+		this.intValue = i;
 	}
 
 	public PluginResult(Status status, float f) {
 		this.status = status.ordinal();
-		this.message = ""+f;
+		this.messageType = MESSAGE_FLOAT;
+		this.floatValue = f;
 	}
 
 	public PluginResult(Status status, boolean b) {
 		this.status = status.ordinal();
-		this.message = ""+b;
+		this.messageType = MESSAGE_BOOLEAN;
+		this.booleanValue = b;
+	}
+	
+	/**
+	 * Create a result with binary data.
+	 * The data is served by the callback server, and JavaScript receives the URL to get it from.
+	 * If that's not possible, then JavaScript receives a base64 data URL instead.
+	 * 
+	 * @param status
+	 * @param data			The data
+	 * @param mimeType		The content type of the data (null = application/octet-stream)
+	 */
+	public PluginResult(Status status, byte[] data, String mimeType) {
+		this.status = status.ordinal();
+		this.messageType = MESSAGE_BINARY;
+		this.value = data;
+		this.mimeType = (mimeType != null) ? mimeType : DEFAULT_MIME_TYPE;
+	}
+
+	/**
+	 * Create a result with the contents of a file.
+	 * The file is served by the callback server, and JavaScript receives the URL to get it from.
+	 * If that's not possible, then JavaScript receives a base64 data URL instead.
+	 * 
+	 * @param status
+	 * @param file			The file
+	 * @param mimeType		The content type of the file (null = application/octet-stream)
+	 */
+	public PluginResult(Status status, File file, String mimeType) {
+		this.status = status.ordinal();
+		this.messageType = MESSAGE_BINARY;
+		this.value = file;
+		this.mimeType = (mimeType != null) ? mimeType : DEFAULT_MIME_TYPE;
 	}
 	
 	public void setKeepCallback(boolean b) {
 		this.keepCallback = b;
 	}
 	
+	/**
+	 * Set whether this result replaces a result for the same callback that hasn't been 
+	 * delivered to JavaScript yet.  This is meant for keepCallback results that report the
+	 * latest state, where older undelivered ones are stale.
+	 * 
+	 * @param b
+	 */
+	public void setCoalesce(boolean b) {
+		this.coalesce = b;
+	}
+	
 	public int getStatus() {
 		return status;
 	}
 
 	public String getMessage() {
+		if (this.message == null) {
+			StringBuilder buf = new StringBuilder();
+			this.writeMessage(buf);
+			this.message = buf.toString();
+
+			// Binary data is kept, since it may still be served from a URL
+			if (this.messageType != MESSAGE_BINARY) {
+				this.value = null;
+			}
+		}
 		return message;
 	}
 	
@@ -81,24 +187,231 @@ public class PluginResult {
 		return this.keepCallback;
 	}
 	
+	public boolean getCoalesce() {
+		return this.coalesce;
+	}
+	
+	public boolean isBinary() {
+		return this.messageType == MESSAGE_BINARY;
+	}
+	
+	/**
+	 * Get the data of a binary result.
+	 * 
+	 * @return				byte[] or File, or null if result is not binary
+	 */
+	public Object getBinary() {
+		return (this.messageType == MESSAGE_BINARY) ? this.value : null;
+	}
+	
+	public String getMimeType() {
+		return this.mimeType;
+	}
+	
+	/**
+	 * Set the URL that the data of a binary result can be read from.
+	 * This URL is sent as the message instead of the data.
+	 * 
+	 * @param url
+	 */
+	public void setBinaryUrl(String url) {
+		this.binaryUrl = url;
+		this.message = null;
+	}
+	
 	public String getJSONString() {
-		return "{status:" + this.status + ",message:" + this.message + ",keepCallback:" + this.keepCallback + "}";
+		StringBuilder buf = new StringBuilder(64);
+		this.writeJSONString(buf);
+		return buf.toString();
 	}
 	
 	public String toSuccessCallbackString(String callbackId) {
-		StringBuffer buf = new StringBuffer("");
+		StringBuilder buf = new StringBuilder(128);
+		this.writeSuccessCallbackString(buf, callbackId);
+		return buf.toString();
+	}
+	
+	public String toErrorCallbackString(String callbackId) {
+		StringBuilder buf = new StringBuilder(128);
+		this.writeErrorCallbackString(buf, callbackId);
+		return buf.toString();
+	}
+	
+	/**
+	 * Append the result as a JSON string to a buffer.
+	 * 
+	 * @param buf
+	 */
+	public void writeJSONString(StringBuilder buf) {
+		buf.append("{status:").append(this.status).append(",message:");
+		this.writeMessage(buf);
+		buf.append(",keepCallback:").append(this.keepCallback).append('}');
+	}
+	
+	/**
+	 * Append the JavaScript statement that calls the success callback to a buffer.
+	 * 
+	 * @param buf
+	 * @param callbackId
+	 */
+	public void writeSuccessCallbackString(StringBuilder buf, String callbackId) {
 		if (cast != null) {
-			buf.append("var temp = "+cast+"("+this.getJSONString() + ");\n");
-			buf.append("PhoneGap.callbackSuccess('"+callbackId+"',temp);");
+			buf.append("var temp = ").append(this.cast).append('(');
+			this.writeJSONString(buf);
+			buf.append(");\n");
+			buf.append("PhoneGap.callbackSuccess('").append(callbackId).append("',temp);");
 		}
 		else {
-			buf.append("PhoneGap.callbackSuccess('"+callbackId+"',"+this.getJSONString()+");");			
+			buf.append("PhoneGap.callbackSuccess('").append(callbackId).append("',");
+			this.writeJSONString(buf);
+			buf.append(");");
 		}
-		return buf.toString();
 	}
 	
-	public String toErrorCallbackString(String callbackId) {
-		return "PhoneGap.callbackError('"+callbackId+"', " + this.getJSONString()+ ");";
+	/**
+	 * Append the JavaScript statement that calls the error callback to a buffer.
+	 * 
+	 * @param buf
+	 * @param callbackId
+	 */
+	public void writeErrorCallbackString(StringBuilder buf, String callbackId) {
+		buf.append("PhoneGap.callbackError('").append(callbackId).append("', ");
+		this.writeJSONString(buf);
+		buf.append(");");
+	}
+	
+	/**
+	 * Append the JSON encoded message to a buffer.
+	 * 
+	 * @param buf
+	 */
+	private void writeMessage(StringBuilder buf) {
+		if (this.message != null) {
+			buf.append(this.message);
+			return;
+		}
+		switch (this.messageType) {
+		case MESSAGE_STRING:
+			quote(buf, (String)this.value);
+			break;
+		case MESSAGE_INT:
+			buf.append(this.intValue);
+			break;
+		case MESSAGE_FLOAT:
+			buf.append(this.floatValue);
+			break;
+		case MESSAGE_BOOLEAN:
+			buf.append(this.booleanValue);
+			break;
+		case MESSAGE_BINARY:
+			if (this.binaryUrl != null) {
+				quote(buf, this.binaryUrl);
+			}
+			else {
+				this.writeDataUrl(buf);
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * Append the data of a binary result as a quoted base64 data URL to a buffer.
+	 * 
+	 * @param buf
+	 */
+	private void writeDataUrl(StringBuilder buf) {
+		byte[] data = null;
+		if (this.value instanceof File) {
+			File file = (File)this.value;
+			FileInputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				data = new byte[(int)file.length()];
+				int n = 0;
+				while (n < data.length) {
+					int r = in.read(data, n, data.length - n);
+					if (r < 0) {
+						break;
+					}
+					n += r;
+				}
+			} catch (IOException e) {
+				Log.d("PluginResult", "Error reading "+file+": "+e.getMessage());
+				data = new byte[0];
+			} finally {
+				try {
+					if (in != null) {
+						in.close();
+					}
+				} catch (IOException e) {
+				}
+			}
+		}
+		else {
+			data = (byte[])this.value;
+		}
+		byte[] base64 = Base64.encodeBase64(data);
+		data = null;
+		buf.ensureCapacity(buf.length() + base64.length + this.mimeType.length() + 16);
+		buf.append("\"data:").append(this.mimeType).append(";base64,");
+		for (int i = 0; i < base64.length; i++) {
+			buf.append((char)base64[i]);
+		}
+		buf.append('"');
+	}
+	
+	/**
+	 * Append a string as a quoted JSON string to a buffer.
+	 * Line and paragraph separators are escaped too, since they can't be in a JavaScript string literal.
+	 * 
+	 * @param buf
+	 * @param s
+	 */
+	private static void quote(StringBuilder buf, String s) {
+		if (s == null) {
+			buf.append("\"\"");
+			return;
+		}
+		buf.append('"');
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				buf.append('\\').append(c);
+				break;
+			case '\t':
+				buf.append("\\t");
+				break;
+			case '\b':
+				buf.append("\\b");
+				break;
+			case '\n':
+				buf.append("\\n");
+				break;
+			case '\r':
+				buf.append("\\r");
+				break;
+			case '\f':
+				buf.append("\\f");
+				break;
+			default:
+				if ((c < ' ') || (c == '\u2028') || (c == '\u2029')) {
+					buf.append("\\u");
+					String hex = Integer.toHexString(c);
+					for (int j = hex.length(); j < 4; j++) {
+						buf.append('0');
+					}
+					buf.append(hex);
+				}
+				else {
+					buf.append(c);
+				}
+			}
+		}
+		buf.append('"');
 	}
 	
 	public static String[] StatusMessages = new String[] {